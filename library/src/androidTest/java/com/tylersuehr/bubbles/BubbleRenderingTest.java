@@ -0,0 +1,342 @@
+package com.tylersuehr.bubbles;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Parcelable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.content.ContextCompat;
+import android.view.View;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Pixel-equivalence tests for every bubble rendering path, run through {@link RenderHarness}
+ * at several sizes, densities, border widths and peek/offset settings. This includes the
+ * circles handed to bubbles restored from saved state, and resource bubbles that decode
+ * their resource lazily.
+ *
+ * These run as instrumentation tests because Robolectric doesn't rasterize anything, but
+ * they render offscreen and work on a headless emulator (emulator -no-window). The report
+ * and the images of failed comparisons are saved to the test app's external files.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+@RunWith(AndroidJUnit4.class)
+public class BubbleRenderingTest {
+    private static final int[] DENSITIES = { 160, 320, 480 };
+    private static final int[] SIZES_DP = { 24, 40, 64 };
+    private static final int[] BORDER_WIDTHS_DP = { 0, 1, 3, 100 }; // 100dp gets limited
+    private static final int BORDER_COLOR = 0xFF757575;
+    private static final int BACK_COLOR = 0xFFFAFAFA;
+    private static final int TEXT_COLOR = 0xFF3F51B5;
+    private static final int[] RESOURCES = {
+            android.R.drawable.ic_menu_add,
+            android.R.drawable.ic_menu_camera,
+            android.R.drawable.star_big_on
+    };
+
+    /**
+     * The ways {@link CircleImageView} can render a bubble.
+     */
+    private enum RenderPath {
+        /* Crops the drawable once and caches the crop in the view */
+        CROP,
+        /* Takes the crop that another view already put in BubbleCache */
+        SHARED_CACHE,
+        /* Draws each animation frame through the frame shader */
+        FRAME_SHADER,
+        /* Draws the circle a restored BubbleLayout found in the cache (then evicted) */
+        RESTORED
+    }
+
+    private Context context;
+    private int keyCount = 0;
+
+
+    @Before
+    public void setUp() {
+        this.context = InstrumentationRegistry.getTargetContext();
+        BubbleCache.clear();
+    }
+
+    @Test
+    public void circleImageView_matchesReference() {
+        RenderHarness harness = new RenderHarness(context);
+        for (int densityDpi : DENSITIES) {
+            Context c = RenderHarness.withDensity(context, densityDpi);
+            float density = c.getResources().getDisplayMetrics().density;
+
+            for (int sizeDp : SIZES_DP) {
+                for (int borderDp : BORDER_WIDTHS_DP) {
+                    final int size = (int)(sizeDp * density);
+                    final int borderWidth = (int)(borderDp * density);
+                    final Bitmap source = RenderHarness.createSourceImage(size, sizeDp + borderDp);
+                    final Context dc = c;
+                    String caseName = "image_" + densityDpi + "dpi_" + sizeDp + "dp_border" + borderDp + "dp";
+
+                    Bitmap expected = RenderHarness.renderReferenceImage(c, source, size, borderWidth, BORDER_COLOR, BACK_COLOR);
+                    harness.recordReference(caseName, "REFERENCE", expected, new Runnable() {
+                        @Override
+                        public void run() {
+                            RenderHarness.renderReferenceImage(dc, source, size, borderWidth, BORDER_COLOR, BACK_COLOR);
+                        }
+                    });
+
+                    for (RenderPath path : RenderPath.values()) {
+                        CircleImageView view = createImage(c, path, source, size, borderWidth);
+                        harness.compare(caseName, path.name(), view, expected);
+                    }
+                }
+            }
+        }
+        assertNoFailures(harness.finish("circle_image_view"));
+    }
+
+    @Test
+    public void resourceImage_matchesReference() {
+        RenderHarness harness = new RenderHarness(context);
+        for (int densityDpi : DENSITIES) {
+            Context c = RenderHarness.withDensity(context, densityDpi);
+            float density = c.getResources().getDisplayMetrics().density;
+
+            for (int sizeDp : SIZES_DP) {
+                for (int borderDp : BORDER_WIDTHS_DP) {
+                    for (int res : RESOURCES) {
+                        int size = (int)(sizeDp * density);
+                        int borderWidth = (int)(borderDp * density);
+                        String caseName = "res" + res + "_" + densityDpi + "dpi_" + sizeDp + "dp_border" + borderDp + "dp";
+
+                        Bitmap source = RenderHarness.createSourceImage(ContextCompat.getDrawable(c, res), size);
+                        Bitmap expected = RenderHarness.renderReferenceImage(c, source, size, borderWidth, BORDER_COLOR, BACK_COLOR);
+
+                        // Only the resource is given, like addBubble(int) on a cache hit
+                        CircleImageView view = new CircleImageView(c);
+                        view.setBorderColor(BORDER_COLOR);
+                        view.setBorderBackColor(BACK_COLOR);
+                        view.setBorderWidth(borderWidth);
+                        view.setSourceRes(res);
+                        RenderHarness.layoutView(view, size, size);
+                        harness.compare(caseName, "LAZY_RESOURCE", view, expected);
+                    }
+                }
+            }
+        }
+        assertNoFailures(harness.finish("resource_image"));
+    }
+
+    @Test
+    public void circleCountView_matchesReference() {
+        RenderHarness harness = new RenderHarness(context);
+        for (int densityDpi : DENSITIES) {
+            Context c = RenderHarness.withDensity(context, densityDpi);
+            float density = c.getResources().getDisplayMetrics().density;
+
+            for (int sizeDp : SIZES_DP) {
+                for (int borderDp : BORDER_WIDTHS_DP) {
+                    for (int count : new int[] { 3, 42, 999 }) {
+                        int size = (int)(sizeDp * density);
+                        int borderWidth = (int)(borderDp * density);
+                        String caseName = "count" + count + "_" + densityDpi + "dpi_" + sizeDp + "dp_border" + borderDp + "dp";
+
+                        CircleCountView view = new CircleCountView(c);
+                        view.setBorderColor(BORDER_COLOR);
+                        view.setBackColor(BACK_COLOR);
+                        view.setTextColor(TEXT_COLOR);
+                        view.setBorderWidth(borderWidth);
+                        view.setCount(count);
+                        RenderHarness.layoutView(view, size, size);
+
+                        Bitmap expected = RenderHarness.renderReferenceCount(c, view.getText(), size,
+                                borderWidth, BORDER_COLOR, BACK_COLOR, TEXT_COLOR);
+                        harness.compare(caseName, "DEFAULT", view, expected);
+                    }
+                }
+            }
+        }
+        assertNoFailures(harness.finish("circle_count_view"));
+    }
+
+    @Test
+    public void bubbleLayoutStrip_matchesReference() {
+        RenderHarness harness = new RenderHarness(context);
+        for (int densityDpi : DENSITIES) {
+            Context c = RenderHarness.withDensity(context, densityDpi);
+            float density = c.getResources().getDisplayMetrics().density;
+
+            for (int sizeDp : SIZES_DP) {
+                for (int peek : new int[] { 2, 4 }) {
+                    for (int offsetDivisor : new int[] { 0, 2, 3 }) { // 0 uses margins
+                        int size = (int)(sizeDp * density);
+                        int borderWidth = (int)(1f * density);
+                        int margin = (int)(4f * density);
+                        boolean useOffset = offsetDivisor > 0;
+                        int offset = useOffset ? size / offsetDivisor : 0;
+                        String caseName = "strip_" + densityDpi + "dpi_" + sizeDp + "dp_peek" + peek
+                                + (useOffset ? "_offset" + offsetDivisor : "_margin");
+
+                        List<Bitmap> sources = new ArrayList<>();
+                        for (int i = 0; i < peek + 3; i++) {
+                            sources.add(RenderHarness.createSourceImage(size, i));
+                        }
+
+                        for (RenderPath path : RenderPath.values()) {
+                            BubbleLayout layout = createStrip(c, path, sources, size, borderWidth,
+                                    peek, useOffset, offset, margin);
+                            Bitmap expected = RenderHarness.renderReferenceStrip(c, layout, sources,
+                                    size, borderWidth, useOffset, offset, margin);
+                            harness.compare(caseName, path.name(), layout, expected);
+                        }
+                    }
+                }
+            }
+        }
+        assertNoFailures(harness.finish("bubble_layout_strip"));
+    }
+
+
+    private CircleImageView createImage(Context c, RenderPath path, Bitmap source, int size, int borderWidth) {
+        if (path == RenderPath.RESTORED) {
+            // Round-trip a one bubble layout through its saved state
+            BubbleLayout saved = createLayout(c, size, borderWidth, 1);
+            saved.addBubble(new BitmapDrawable(c.getResources(), source), nextKey());
+            RenderHarness.layoutView(saved.getChildAt(0), size, size);
+            saved.getChildAt(0).draw(new Canvas(Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)));
+
+            CircleImageView view = (CircleImageView)restore(c, saved, size, borderWidth, 1).getChildAt(0);
+            view.setBorderBackColor(BACK_COLOR);
+            RenderHarness.layoutView(view, size, size);
+            return view;
+        }
+
+        String key = null;
+        if (path == RenderPath.SHARED_CACHE) {
+            // Render the same source with another view to put its crop in the cache
+            key = nextKey();
+            CircleImageView primer = createImage(c, RenderPath.CROP, source, size, borderWidth);
+            primer.setSourceKey(key);
+            primer.draw(new Canvas(Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)));
+            assertNotNull(BubbleCache.get(BubbleCache.createRenderKey(key, size, borderWidth)));
+        }
+
+        CircleImageView view = new CircleImageView(c);
+        view.setBorderColor(BORDER_COLOR);
+        view.setBorderBackColor(BACK_COLOR);
+        view.setBorderWidth(borderWidth);
+        view.setImageDrawable(createDrawable(c, path, source));
+        view.setSourceKey(key);
+        RenderHarness.layoutView(view, size, size);
+        return view;
+    }
+
+    private BubbleLayout createStrip(Context c, RenderPath path, List<Bitmap> sources, int size,
+                                     int borderWidth, int peek, boolean useOffset, int offset, int margin) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            keys.add((path == RenderPath.SHARED_CACHE) ? nextKey() : null);
+        }
+
+        // Bind an identical strip, and restore the measured one from its saved state
+        if (path == RenderPath.RESTORED) {
+            BubbleLayout saved = createStrip(c, RenderPath.CROP, sources, size, borderWidth,
+                    peek, useOffset, offset, margin);
+            for (int i = 0; i < Math.min(peek, sources.size()); i++) {
+                ((CircleImageView)saved.getChildAt(i)).setSourceKey(nextKey());
+            }
+            saved.draw(new Canvas(Bitmap.createBitmap(saved.getMeasuredWidth(),
+                    saved.getMeasuredHeight(), Bitmap.Config.ARGB_8888)));
+
+            BubbleLayout layout = restore(c, saved, size, borderWidth, peek);
+            layout.setUseBubbleOffset(useOffset);
+            layout.setBubbleOffset(offset);
+            layout.setBubbleMargin(margin);
+            int spec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+            layout.measure(spec, spec);
+            layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+            return layout;
+        }
+
+        // Bind an identical strip first so the measured one takes its crops from the cache
+        if (path == RenderPath.SHARED_CACHE) {
+            BubbleLayout primer = createStrip(c, RenderPath.CROP, sources, size, borderWidth,
+                    peek, useOffset, offset, margin);
+            for (int i = 0; i < Math.min(peek, sources.size()); i++) {
+                ((CircleImageView)primer.getChildAt(i)).setSourceKey(keys.get(i));
+            }
+            primer.draw(new Canvas(Bitmap.createBitmap(primer.getMeasuredWidth(),
+                    primer.getMeasuredHeight(), Bitmap.Config.ARGB_8888)));
+        }
+
+        BubbleLayout layout = new BubbleLayout(c);
+        layout.setBubbleSize(size);
+        layout.setBubbleBorderWidth(borderWidth);
+        layout.setBubbleBorderColor(BORDER_COLOR);
+        layout.setBubblePeek(peek);
+        layout.setUseBubbleOffset(useOffset);
+        layout.setBubbleOffset(offset);
+        layout.setBubbleMargin(margin);
+        for (int i = 0; i < sources.size(); i++) {
+            layout.addBubble(createDrawable(c, path, sources.get(i)), keys.get(i));
+        }
+
+        int spec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+        layout.measure(spec, spec);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+        return layout;
+    }
+
+    private static BubbleLayout createLayout(Context c, int size, int borderWidth, int peek) {
+        BubbleLayout layout = new BubbleLayout(c);
+        layout.setBubbleSize(size);
+        layout.setBubbleBorderWidth(borderWidth);
+        layout.setBubbleBorderColor(BORDER_COLOR);
+        layout.setBubblePeek(peek);
+        return layout;
+    }
+
+    /**
+     * Restores the saved layout's state into a new layout, then evicts everything from the
+     * cache so the restored bubbles can only draw the circles they were handed.
+     */
+    private static BubbleLayout restore(Context c, BubbleLayout saved, int size, int borderWidth, int peek) {
+        Parcelable state = saved.onSaveInstanceState();
+        BubbleLayout layout = createLayout(c, size, borderWidth, peek);
+        layout.onRestoreInstanceState(state);
+        assertEquals(saved.getChildCount(), layout.getChildCount());
+        BubbleCache.clear();
+        return layout;
+    }
+
+    private static Drawable createDrawable(Context c, RenderPath path, Bitmap source) {
+        return (path == RenderPath.FRAME_SHADER)
+                ? new RenderHarness.AnimatedBitmapDrawable(c, source)
+                : new BitmapDrawable(c.getResources(), source);
+    }
+
+    private String nextKey() {
+        return "golden:" + (keyCount++);
+    }
+
+    private static void assertNoFailures(List<String> failures) {
+        if (!failures.isEmpty()) {
+            StringBuilder sb = new StringBuilder(failures.size() + " comparisons failed:");
+            for (String failure : failures) {
+                sb.append("\n  ").append(failure);
+            }
+            fail(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.tylersuehr.bubbles;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.View;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Golden-image harness for comparing bubble rendering paths. Everything is rendered
+ * offscreen into Bitmaps, so no Activity or window is needed.
+ *
+ * The golden images come from {@link #renderReferenceImage} and {@link #renderReferenceCount},
+ * which replicate the original draw code of {@link CircleImageView} and {@link CircleCountView}
+ * (border circle, back circle, and the SRC_IN crop of the whole drawable on every draw).
+ * Any rendering path must match them within {@link #CHANNEL_TOLERANCE}.
+ *
+ * Every comparison is recorded in a CSV report along with the draw time, and the expected
+ * and actual images of failed comparisons are saved next to it as PNGs.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+final class RenderHarness {
+    private static final String TAG = "RenderHarness";
+    /* Max difference allowed per color channel (covers anti-aliasing rounding) */
+    static final int CHANNEL_TOLERANCE = 4;
+    /* Max ratio of pixels allowed to exceed the channel tolerance */
+    static final float MAX_MISMATCH_RATIO = 0.001f;
+    /* Amount of draws averaged when timing a view */
+    private static final int TIMED_DRAWS = 50;
+
+    private final File outputDir;
+    private final List<String> rows = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+
+
+    RenderHarness(Context context) {
+        File dir = context.getExternalFilesDir(null);
+        this.outputDir = new File((dir != null) ? dir : context.getFilesDir(), "bubble-render");
+        this.outputDir.mkdirs();
+        this.rows.add("case,path,size,mismatched,maxDelta,firstDrawUs,avgDrawUs,passed");
+    }
+
+    /**
+     * Creates a context that reports the given density to the views using it.
+     * @param context Base context
+     * @param densityDpi Density to use
+     * @return Context with the density, or the base context before API 17
+     */
+    static Context withDensity(Context context, int densityDpi) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return context;
+        }
+        Configuration config = new Configuration(context.getResources().getConfiguration());
+        config.densityDpi = densityDpi;
+        return context.createConfigurationContext(config);
+    }
+
+    /**
+     * Creates a deterministic source image with gradients, hard edges and transparency,
+     * so differences in scaling and cropping show up in the diff.
+     */
+    static Bitmap createSourceImage(int size, int seed) {
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int r = (x * 255) / size;
+                int g = (y * 255) / size;
+                int b = ((x + y + seed * 37) * 4) & 0xFF;
+                int a = ((x / 8 + y / 8 + seed) % 5 == 0) ? 0x80 : 0xFF;
+                pixels[y * size + x] = Color.argb(a, r, g, b);
+            }
+        }
+        return Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Test-only animated drawable that draws a still Bitmap, which forces
+     * {@link CircleImageView} onto its animated frame path.
+     */
+    static final class AnimatedBitmapDrawable extends BitmapDrawable implements Animatable {
+        private boolean running;
+
+        AnimatedBitmapDrawable(Context context, Bitmap bitmap) {
+            super(context.getResources(), bitmap);
+        }
+
+        @Override
+        public void start() {
+            this.running = true;
+        }
+
+        @Override
+        public void stop() {
+            this.running = false;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+    }
+
+    /**
+     * Draws the drawable at the given size, to use as the source image of a reference.
+     */
+    static Bitmap createSourceImage(Drawable drawable, int size) {
+        Bitmap source = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        drawable.setBounds(0, 0, size, size);
+        drawable.draw(new Canvas(source));
+        return source;
+    }
+
+    /**
+     * Renders a bubble image the way the original {@link CircleImageView} did.
+     */
+    static Bitmap renderReferenceImage(Context context, Bitmap source, int size, int borderWidth,
+                                       int borderColor, int backColor) {
+        Bitmap output = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        drawReferenceImage(new Canvas(output), context, source, size, borderWidth, borderColor, backColor);
+        return output;
+    }
+
+    private static void drawReferenceImage(Canvas canvas, Context context, Bitmap source, int size,
+                                           int borderWidth, int borderColor, int backColor) {
+        if (size / 3 < borderWidth) {
+            borderWidth = size / 3;
+        }
+        int circleRadius = (size - (borderWidth * 2)) / 2;
+        int radius = circleRadius + borderWidth;
+        Rect circleRect = new Rect(0, 0, size, size);
+
+        Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        borderPaint.setStyle(Paint.Style.FILL);
+        borderPaint.setColor(borderColor);
+        Paint mainPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mainPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
+
+        // Drawable to Bitmap
+        Bitmap full = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Drawable drawable = new BitmapDrawable(context.getResources(), source);
+        drawable.setBounds(0, 0, size, size);
+        drawable.draw(new Canvas(full));
+
+        // Cut into circle
+        Bitmap circle = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas circleCanvas = new Canvas(circle);
+        circleCanvas.drawARGB(0, 0, 0, 0);
+        circleCanvas.drawCircle(radius, radius, circleRadius, borderPaint);
+        circleCanvas.drawBitmap(full, circleRect, circleRect, mainPaint);
+
+        canvas.drawCircle(radius, radius, radius, borderPaint);
+        borderPaint.setColor(backColor);
+        canvas.drawCircle(radius, radius, circleRadius, borderPaint);
+        canvas.drawBitmap(circle, 0, 0, null);
+    }
+
+    /**
+     * Renders a count bubble the way the original {@link CircleCountView} did.
+     */
+    static Bitmap renderReferenceCount(Context context, CharSequence text, int size, int borderWidth,
+                                       int borderColor, int backColor, int textColor) {
+        Bitmap output = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        drawReferenceCount(new Canvas(output), context, text, size, borderWidth, borderColor, backColor, textColor);
+        return output;
+    }
+
+    private static void drawReferenceCount(Canvas canvas, Context context, CharSequence text, int size,
+                                           int borderWidth, int borderColor, int backColor, int textColor) {
+        DisplayMetrics dm = context.getResources().getDisplayMetrics();
+        Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(textColor);
+        textPaint.setTextSize((size / dm.density / text.length()) * dm.scaledDensity);
+
+        if (size / 3 < borderWidth) {
+            borderWidth = size / 3;
+        }
+        int circleRadius = (size - (borderWidth * 2)) / 2;
+        int fullRadius = circleRadius + borderWidth;
+
+        Paint circlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        circlePaint.setStyle(Paint.Style.FILL);
+        circlePaint.setColor(borderColor);
+        canvas.drawCircle(fullRadius, fullRadius, fullRadius, circlePaint);
+        circlePaint.setColor(backColor);
+        canvas.drawCircle(fullRadius, fullRadius, circleRadius, circlePaint);
+
+        float textWidth = textPaint.measureText(text, 0, text.length());
+        float dx = (size >> 1) - ((int)textWidth >> 1);
+        float dy = (size >> 1) - ((int)(textPaint.descent() + textPaint.ascent()) >> 1) - 1;
+        canvas.drawText(text, 0, text.length(), dx, dy, textPaint);
+    }
+
+    /**
+     * Renders a whole bubble strip the way the original {@link BubbleLayout} laid it out,
+     * using the reference bubbles. The count bubble is drawn if the layout has one.
+     */
+    static Bitmap renderReferenceStrip(Context context, BubbleLayout layout, List<Bitmap> sources,
+                                       int bubbleSize, int borderWidth, boolean useOffset,
+                                       int offset, int margin) {
+        Bitmap output = Bitmap.createBitmap(layout.getMeasuredWidth(), layout.getMeasuredHeight(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(output);
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            int left = useOffset
+                    ? i * ((i > 0) ? (bubbleSize - offset) : bubbleSize)
+                    : i * (bubbleSize + margin);
+
+            canvas.save();
+            canvas.translate(left, 0);
+            View child = layout.getChildAt(i);
+            if (child instanceof CircleImageView) {
+                CircleImageView image = (CircleImageView)child;
+                drawReferenceImage(canvas, context, sources.get(i), bubbleSize, borderWidth,
+                        image.getBorderColor(), image.getBackColor());
+            } else {
+                CircleCountView count = (CircleCountView)child;
+                drawReferenceCount(canvas, context, count.getText(), bubbleSize, borderWidth,
+                        count.getBorderColor(), count.getBackColor(), count.getTextColor());
+            }
+            canvas.restore();
+        }
+        return output;
+    }
+
+    /**
+     * Measures and lays out the view at its exact size.
+     */
+    static void layoutView(View view, int width, int height) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+    }
+
+    /**
+     * Draws the view once (recording the first draw time, which includes any cropping),
+     * then times the average steady-state draw. Both the first and the final draw are
+     * compared against the expected image, since cached paths can differ between them.
+     * The first draw is recorded in the report as the path with a "_FIRST" suffix.
+     * @return True if both draws match within tolerance
+     */
+    boolean compare(String caseName, String path, View view, Bitmap expected) {
+        int width = view.getMeasuredWidth();
+        int height = view.getMeasuredHeight();
+        Bitmap actual = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(actual);
+
+        long start = System.nanoTime();
+        view.draw(canvas);
+        long firstDrawNs = System.nanoTime() - start;
+        Bitmap first = actual.copy(Bitmap.Config.ARGB_8888, false);
+
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_DRAWS; i++) {
+            actual.eraseColor(Color.TRANSPARENT);
+            view.draw(canvas);
+        }
+        long avgDrawNs = (System.nanoTime() - start) / TIMED_DRAWS;
+
+        boolean firstPassed = record(caseName, path + "_FIRST", first, expected, firstDrawNs, firstDrawNs);
+        boolean passed = record(caseName, path, actual, expected, firstDrawNs, avgDrawNs);
+        return firstPassed && passed;
+    }
+
+    /**
+     * Records the timing of the reference renderer itself, which is the baseline cost
+     * that any faster path is measured against.
+     */
+    void recordReference(String caseName, String path, Bitmap expected, Runnable render) {
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_DRAWS; i++) {
+            render.run();
+        }
+        long avgDrawNs = (System.nanoTime() - start) / TIMED_DRAWS;
+        record(caseName, path, expected, expected, avgDrawNs, avgDrawNs);
+    }
+
+    private boolean record(String caseName, String path, Bitmap actual, Bitmap expected,
+                           long firstDrawNs, long avgDrawNs) {
+        int mismatched;
+        int maxDelta = 0;
+        if (actual.getWidth() != expected.getWidth() || actual.getHeight() != expected.getHeight()) {
+            mismatched = actual.getWidth() * actual.getHeight();
+            maxDelta = 255;
+        } else {
+            int[] a = new int[actual.getWidth() * actual.getHeight()];
+            int[] e = new int[a.length];
+            actual.getPixels(a, 0, actual.getWidth(), 0, 0, actual.getWidth(), actual.getHeight());
+            expected.getPixels(e, 0, expected.getWidth(), 0, 0, expected.getWidth(), expected.getHeight());
+
+            mismatched = 0;
+            for (int i = 0; i < a.length; i++) {
+                int delta = maxChannelDelta(a[i], e[i]);
+                maxDelta = Math.max(maxDelta, delta);
+                if (delta > CHANNEL_TOLERANCE) {
+                    mismatched++;
+                }
+            }
+        }
+
+        int pixels = expected.getWidth() * expected.getHeight();
+        boolean passed = mismatched <= (int)(pixels * MAX_MISMATCH_RATIO);
+        this.rows.add(caseName + "," + path + "," + expected.getWidth() + "x" + expected.getHeight()
+                + "," + mismatched + "," + maxDelta + "," + (firstDrawNs / 1000) + ","
+                + (avgDrawNs / 1000) + "," + passed);
+
+        if (!passed) {
+            String name = (caseName + "_" + path).replaceAll("[^A-Za-z0-9_-]", "_");
+            this.failures.add(caseName + " [" + path + "]: " + mismatched + "/" + pixels
+                    + " pixels off (max channel delta " + maxDelta + ")");
+            savePng(expected, name + "_expected.png");
+            savePng(actual, name + "_actual.png");
+        }
+        return passed;
+    }
+
+    /**
+     * Writes the report and returns the failed comparisons.
+     * @return Description of each failed comparison
+     */
+    List<String> finish(String reportName) {
+        File report = new File(outputDir, reportName + ".csv");
+        try {
+            PrintWriter writer = new PrintWriter(report, "UTF-8");
+            for (String row : rows) {
+                writer.println(row);
+            }
+            writer.close();
+            Log.i(TAG, "Wrote " + (rows.size() - 1) + " comparisons to " + report);
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't write report " + report, ex);
+        }
+        return failures;
+    }
+
+    private void savePng(Bitmap bitmap, String name) {
+        File file = new File(outputDir, name);
+        try {
+            OutputStream out = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.close();
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't save " + file, ex);
+        }
+    }
+
+    private static int maxChannelDelta(int a, int e) {
+        int delta = Math.abs(Color.alpha(a) - Color.alpha(e));
+        delta = Math.max(delta, Math.abs(Color.red(a) - Color.red(e)));
+        delta = Math.max(delta, Math.abs(Color.green(a) - Color.green(e)));
+        return Math.max(delta, Math.abs(Color.blue(a) - Color.blue(e)));
+    }
+}
@@ -0,0 +1,115 @@
+package com.tylersuehr.bubbles;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Process-wide cache of the circles rendered by {@link CircleImageView} for bubbles that
+ * were given a source key. Because it's static, it outlives any Activity, so a
+ * {@link BubbleLayout} restored after a configuration change draws its bubbles straight
+ * from here instead of decoding and cropping every avatar again.
+ *
+ * Entries are keyed by the source key, the bubble size and the border width, since the
+ * rendered circle depends on all three. The cache is bounded by 1/16 of the max heap, and
+ * it registers for memory trim callbacks with the application the first time something is
+ * put in it, so it's released under memory pressure whether or not adaptive quality is on.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+public final class BubbleCache {
+    private static final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(
+            (int)Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            clear();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+    };
+    private static Context registeredContext; // Application the trim callbacks are registered with
+
+
+    private BubbleCache() {}
+
+    /**
+     * Removes all rendered circles from the cache.
+     */
+    public static void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Releases rendered circles when the system is running low on memory. Bubbles that
+     * are showing keep their own reference, so they don't need to render again.
+     * @param level Level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.evictAll();
+        }
+    }
+
+    static Bitmap get(String renderKey) {
+        return cache.get(renderKey);
+    }
+
+    static void put(Context context, String renderKey, Bitmap bitmap) {
+        Context appContext = context.getApplicationContext();
+        if (registeredContext != appContext) {
+            if (registeredContext != null) {
+                registeredContext.unregisterComponentCallbacks(trimCallbacks);
+            }
+            appContext.registerComponentCallbacks(trimCallbacks);
+            registeredContext = appContext;
+        }
+        cache.put(renderKey, bitmap);
+    }
+
+    static void remove(String renderKey) {
+        cache.remove(renderKey);
+    }
+
+    /**
+     * Gets the amount of bytes held by the cache.
+     * @return Byte count
+     */
+    static int size() {
+        return cache.size();
+    }
+
+    /**
+     * Gets the max amount of bytes the cache can hold.
+     * @return Byte count
+     */
+    static int maxSize() {
+        return cache.maxSize();
+    }
+
+    /**
+     * Creates the key of a rendered circle.
+     * @param sourceKey Key of the bubble's source image
+     * @param size Size of the bubble
+     * @param borderWidth Border width of the bubble (limited to 1/3 of the size, like when drawn)
+     * @return Key of the rendered circle
+     */
+    static String createRenderKey(String sourceKey, int size, int borderWidth) {
+        return sourceKey + "@" + size + "/" + Math.min(borderWidth, size / 3);
+    }
+}
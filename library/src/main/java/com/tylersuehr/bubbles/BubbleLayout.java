@@ -4,11 +4,15 @@ import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.annotation.ColorInt;
 import android.support.annotation.ColorRes;
 import android.support.annotation.DrawableRes;
+import android.support.annotation.Nullable;
 import android.support.annotation.Px;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.view.View;
 import android.view.ViewGroup;
@@ -16,10 +20,33 @@ import android.view.ViewGroup;
 /**
  * Copyright © 2017 Tyler Suehr
  *
+ * Saving State:
+ * When it has an id, this layout saves the excess count and a source reference for each
+ * bubble (its key and/or drawable resource) instead of the images themselves. On restore,
+ * each bubble is given its rendered circle from {@link BubbleCache}, so nothing is decoded
+ * or cropped again after a configuration change. Bubbles added without a key or resource
+ * can't be restored (nor can keyed ones whose circle was evicted), so a layout containing
+ * any of those restores nothing.
+ *
+ * Adaptive Quality:
+ * When enabled, the {@link QualityMonitor} shared by all adaptive layouts watches frame
+ * timing (while drawing) and memory trim levels while this layout is attached, and steps
+ * the rendering quality of the bubbles between {@link #QUALITY_HIGH},
+ * {@link #QUALITY_MEDIUM} (less anti-aliasing) and {@link #QUALITY_LOW} (also half
+ * resolution crops, and placeholders instead of decoding new images). It steps back up
+ * once frames are smooth again. Use {@link OnQualityChangeListener} to monitor it.
+ *
  * @author Tyler Suehr
  * @version 1.0
  */
 public class BubbleLayout extends ViewGroup {
+    /* Full quality rendering */
+    public static final int QUALITY_HIGH = 0;
+    /* No anti-aliasing of the border circles and animation frames */
+    public static final int QUALITY_MEDIUM = 1;
+    /* Same as medium, plus half resolution crops and no decoding of new images */
+    public static final int QUALITY_LOW = 2;
+
     /* Size of each bubble */
     private int bubbleSize;
     /* Distance each bubble is from each other */
@@ -36,8 +63,17 @@ public class BubbleLayout extends ViewGroup {
     private int textColor;
     /* Whether or not to offset each bubble */
     private boolean useOffset;
+    /* Max redraws per second of animated bubbles (0 = no limit) */
+    private int maxFrameRate;
     /* Stores count of excess bubbles (used when peek exceeded) */
     private int excess = 0;
+    /* Whether or not to adapt the quality to frame timing and memory pressure */
+    private boolean adaptiveQuality;
+    /* Current rendering quality of the bubbles */
+    private int qualityLevel = QUALITY_HIGH;
+    /* Amount of quality changes made (used for monitoring) */
+    private int qualityChanges = 0;
+    private OnQualityChangeListener qualityListener;
 
 
     public BubbleLayout(Context context) {
@@ -69,6 +105,8 @@ public class BubbleLayout extends ViewGroup {
         this.bubbleBorderColor = a.getColor(R.styleable.BubbleLayout_borderColor, ContextCompat.getColor(c, R.color.default_circle_border_color));
         this.textColor = a.getColor(R.styleable.BubbleLayout_android_textColor, ContextCompat.getColor(c, R.color.default_circle_text_color));
         this.useOffset = a.getBoolean(R.styleable.BubbleLayout_useBubbleOffset, true);
+        this.maxFrameRate = a.getInt(R.styleable.BubbleLayout_maxFrameRate, CircleImageView.DEFAULT_MAX_FRAME_RATE);
+        this.adaptiveQuality = a.getBoolean(R.styleable.BubbleLayout_adaptiveQuality, false);
         a.recycle();
     }
 
@@ -139,15 +177,91 @@ public class BubbleLayout extends ViewGroup {
         if (!(child instanceof CircleImageView || child instanceof CircleCountView)) {
             throw new IllegalArgumentException("View must be either CircleImageView or CircleCountView!");
         }
+        applyQuality(child);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (adaptiveQuality) {
+            QualityMonitor.getInstance().add(this);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        QualityMonitor.getInstance().remove(this);
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        SavedState ss = new SavedState(super.onSaveInstanceState());
+        ss.excess = excess;
+
+        // Only the image bubbles are saved, the count bubble is rebuilt from the excess
+        int images = 0;
+        for (int i = 0; i < getChildCount(); i++) {
+            if (getChildAt(i) instanceof CircleImageView) { images++; }
+        }
+        ss.keys = new String[images];
+        ss.resources = new int[images];
+        for (int i = 0, j = 0; i < getChildCount(); i++) {
+            if (getChildAt(i) instanceof CircleImageView) {
+                CircleImageView image = (CircleImageView)getChildAt(i);
+                ss.keys[j] = image.getSourceKey();
+                ss.resources[j++] = image.getSourceRes();
+            }
+        }
+        return ss;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+
+        SavedState ss = (SavedState)state;
+        super.onRestoreInstanceState(ss.getSuperState());
+
+        // Bubbles were already bound again, or some can't be restored
+        if (getChildCount() > 0) { return; }
+        for (int i = 0; i < ss.keys.length; i++) {
+            if (ss.resources[i] != 0) {
+                // The configuration might've changed, and with it the resource variant
+                ss.keys[i] = createResourceKey(ss.resources[i]);
+            }
+        }
+        Bitmap[] circles = findRestoredCircles(ss);
+        if (circles == null) { return; }
+
+        for (int i = 0; i < ss.keys.length; i++) {
+            CircleImageView image = createThemedImage(null, ss.keys[i], ss.resources[i]);
+            image.setRestoredCircle(circles[i]);
+            addView(image);
+        }
+        if (ss.excess > 0) {
+            this.excess = ss.excess;
+            CircleCountView countView = createThemedCount();
+            countView.setCount(excess);
+            addView(countView);
+        }
     }
 
     /**
-     * Adds a bubble using the given Drawable resource.
+     * Adds a bubble using the given Drawable resource. The resource is kept as the source
+     * reference when saving state.
      * @param res {@link DrawableRes}
      */
     public void addBubble(@DrawableRes int res) {
-        Drawable drawable = ContextCompat.getDrawable(getContext(), res);
-        addBubble(drawable);
+        // Decoding is left to the bubble if its circle is cached, or while the quality is
+        // low (like during a fling), since it decodes the resource only if it needs to
+        String key = createResourceKey(res);
+        boolean cached = BubbleCache.get(BubbleCache.createRenderKey(key, bubbleSize, bubbleBorderWidth)) != null;
+        Drawable drawable = (cached || qualityLevel == QUALITY_LOW) ? null : ContextCompat.getDrawable(getContext(), res);
+        addBubble(drawable, key, res);
     }
 
     /**
@@ -155,8 +269,18 @@ public class BubbleLayout extends ViewGroup {
      * @param bitmap {@link Bitmap}
      */
     public void addBubble(Bitmap bitmap) {
+        addBubble(bitmap, null);
+    }
+
+    /**
+     * Adds a bubble using the given Bitmap and key. The rendered bubble is cached in
+     * {@link BubbleCache} under the key, and the key is kept when saving state.
+     * @param bitmap {@link Bitmap}
+     * @param key Unique key of the image (like its URL), or null
+     */
+    public void addBubble(Bitmap bitmap, @Nullable String key) {
         BitmapDrawable bpd = new BitmapDrawable(getResources(), bitmap);
-        addBubble(bpd);
+        addBubble(bpd, key);
     }
 
     /**
@@ -164,6 +288,20 @@ public class BubbleLayout extends ViewGroup {
      * @param drawable {@link Drawable}
      */
     public void addBubble(Drawable drawable) {
+        addBubble(drawable, null);
+    }
+
+    /**
+     * Adds a bubble using the given Drawable and key. The rendered bubble is cached in
+     * {@link BubbleCache} under the key, and the key is kept when saving state.
+     * @param drawable {@link Drawable}
+     * @param key Unique key of the image (like its URL), or null
+     */
+    public void addBubble(Drawable drawable, @Nullable String key) {
+        addBubble(drawable, key, 0);
+    }
+
+    private void addBubble(Drawable drawable, String key, @DrawableRes int res) {
         // If the child count exceeds the peek, just add a CircleCountView
         if (getChildCount() >= bubblePeek) {
             this.excess++;
@@ -180,7 +318,7 @@ public class BubbleLayout extends ViewGroup {
             countView.setCount(excess);
         } else {
             // Add a new CircleImageView to the ViewGroup
-            addView(createThemedImage(drawable));
+            addView(createThemedImage(drawable, key, res));
         }
     }
 
@@ -240,6 +378,141 @@ public class BubbleLayout extends ViewGroup {
         setBubbleTextColor(ContextCompat.getColor(getContext(), res));
     }
 
+    /**
+     * Sets the max amount of redraws per second for animated bubbles, so a row of
+     * animated avatars doesn't redraw on every frame.
+     * @param maxFrameRate Frames per second, or 0 to redraw on every frame
+     */
+    public void setBubbleMaxFrameRate(int maxFrameRate) {
+        this.maxFrameRate = maxFrameRate;
+        for (int i = 0; i < getChildCount(); i++) {
+            View child = getChildAt(i);
+            if (child instanceof CircleImageView) {
+                ((CircleImageView)child).setMaxFrameRate(maxFrameRate);
+            }
+        }
+    }
+
+
+    /**
+     * Creates the source key of a Drawable resource. It includes the configuration, since
+     * resources can have variants for night mode, orientation, density and so on.
+     * @param res {@link DrawableRes}
+     * @return Source key
+     */
+    private String createResourceKey(@DrawableRes int res) {
+        return "res:" + res + "#" + Integer.toHexString(getResources().getConfiguration().hashCode());
+    }
+
+    /**
+     * Finds the rendered circle of every saved bubble in {@link BubbleCache}. The circles
+     * are handed to the restored bubbles, since the cache could evict them before they're
+     * first drawn. Bubbles with a resource can be decoded again, so they don't need one.
+     * @param ss {@link SavedState}
+     * @return Rendered circles (null for missing ones with a resource), or null if some
+     *         bubbles can't be restored
+     */
+    private Bitmap[] findRestoredCircles(SavedState ss) {
+        Bitmap[] circles = new Bitmap[ss.keys.length];
+        for (int i = 0; i < ss.keys.length; i++) {
+            if (ss.keys[i] != null) {
+                circles[i] = BubbleCache.get(BubbleCache.createRenderKey(
+                        ss.keys[i], bubbleSize, bubbleBorderWidth));
+            }
+            if (circles[i] == null && ss.resources[i] == 0) {
+                return null;
+            }
+        }
+        return circles;
+    }
+
+    /**
+     * Sets whether the rendering quality of the bubbles adapts to frame timing and memory
+     * pressure. Turning it off returns the bubbles to {@link #QUALITY_HIGH}.
+     * @param adaptiveQuality True to adapt the quality
+     */
+    public void setAdaptiveQuality(boolean adaptiveQuality) {
+        this.adaptiveQuality = adaptiveQuality;
+        if (adaptiveQuality) {
+            if (ViewCompat.isAttachedToWindow(this)) {
+                QualityMonitor.getInstance().add(this);
+            }
+        } else {
+            QualityMonitor.getInstance().remove(this);
+            setQualityLevel(QUALITY_HIGH, "adaptive quality off");
+        }
+    }
+
+    public boolean isAdaptiveQuality() {
+        return adaptiveQuality;
+    }
+
+    /**
+     * Gets the current rendering quality of the bubbles.
+     * @return {@link #QUALITY_HIGH}, {@link #QUALITY_MEDIUM} or {@link #QUALITY_LOW}
+     */
+    public int getQualityLevel() {
+        return qualityLevel;
+    }
+
+    /**
+     * Gets the amount of quality changes made since this layout was created.
+     * @return Amount of quality changes
+     */
+    public int getQualityChangeCount() {
+        return qualityChanges;
+    }
+
+    public void setOnQualityChangeListener(OnQualityChangeListener listener) {
+        this.qualityListener = listener;
+    }
+
+    /**
+     * Steps the quality down one level.
+     * @param reason What caused the change
+     */
+    void lowerQuality(String reason) {
+        setQualityLevel(Math.min(QUALITY_LOW, qualityLevel + 1), reason);
+    }
+
+    /**
+     * Steps the quality up one level.
+     * @param reason What caused the change
+     */
+    void raiseQuality(String reason) {
+        setQualityLevel(Math.max(QUALITY_HIGH, qualityLevel - 1), reason);
+    }
+
+    /**
+     * Lowers the quality to the given level, if it's higher than that.
+     * @param level Highest quality allowed
+     * @param reason What caused the change
+     */
+    void limitQuality(int level, String reason) {
+        setQualityLevel(Math.max(qualityLevel, level), reason);
+    }
+
+    private void setQualityLevel(int level, String reason) {
+        if (level == qualityLevel) { return; }
+
+        int oldLevel = qualityLevel;
+        this.qualityLevel = level;
+        this.qualityChanges++;
+        for (int i = 0; i < getChildCount(); i++) {
+            applyQuality(getChildAt(i));
+        }
+        if (qualityListener != null) {
+            this.qualityListener.onQualityChanged(this, oldLevel, level, reason);
+        }
+    }
+
+    private void applyQuality(View child) {
+        if (child instanceof CircleImageView) {
+            ((CircleImageView)child).setRenderQuality(qualityLevel);
+        } else if (child instanceof CircleCountView) {
+            ((CircleCountView)child).setRenderQuality(qualityLevel);
+        }
+    }
 
     /**
      * Creates an instance of {@link CircleCountView} with the defined properties.
@@ -257,14 +530,75 @@ public class BubbleLayout extends ViewGroup {
     /**
      * Creates an instance of {@link CircleImageView} with the defined properties.
      * @param dr {@link Drawable}
+     * @param key Source key of the image, or null
+     * @param res Source {@link DrawableRes} of the image, or 0
      * @return {@link CircleImageView}
      */
-    private CircleImageView createThemedImage(Drawable dr) {
+    private CircleImageView createThemedImage(Drawable dr, String key, @DrawableRes int res) {
         CircleImageView image = new CircleImageView(getContext());
         image.setLayoutParams(new LayoutParams(bubbleSize, bubbleSize));
         image.setBorderColor(bubbleBorderColor);
         image.setBorderWidth(bubbleBorderWidth);
+        image.setMaxFrameRate(maxFrameRate);
         image.setImageDrawable(dr);
+        image.setSourceKey(key);
+        image.setSourceRes(res);
         return image;
     }
+
+
+    /**
+     * Callback for monitoring the quality changes made in adaptive quality mode.
+     */
+    public interface OnQualityChangeListener {
+        /**
+         * Called after the rendering quality of the bubbles changed.
+         * @param layout {@link BubbleLayout}
+         * @param oldLevel Previous quality level
+         * @param newLevel Current quality level
+         * @param reason What caused the change (like "jank", "idle" or "trim memory 10")
+         */
+        void onQualityChanged(BubbleLayout layout, int oldLevel, int newLevel, String reason);
+    }
+
+    /**
+     * Stores the excess count and the source reference of each image bubble.
+     */
+    static class SavedState extends BaseSavedState {
+        int excess;
+        String[] keys;
+        int[] resources;
+
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            this.excess = in.readInt();
+            this.keys = in.createStringArray();
+            this.resources = in.createIntArray();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeInt(excess);
+            out.writeStringArray(keys);
+            out.writeIntArray(resources);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
 }
\ No newline at end of file
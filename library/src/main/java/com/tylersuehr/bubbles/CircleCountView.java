@@ -106,15 +106,15 @@ public class CircleCountView extends View {
         int viewHeight = getMeasuredHeight();
         this.viewSize = Math.min(viewWidth, viewHeight);
 
-        // Using that small size, calculate the exact center of the circle
-        this.circleRadius = (viewSize - (borderWidth * 2)) / 2;
-
-        // Maximize available border size
+        // Maximize available border size (before the radius, so the first draw uses it too)
         if (viewSize == 0) { return; }
         if (viewSize / 3 < borderWidth) {
             this.borderWidth = viewSize / 3;
         }
 
+        // Using that small size, calculate the exact center of the circle
+        this.circleRadius = (viewSize - (borderWidth * 2)) / 2;
+
         // Draw the border circle
         this.circlePaint.setColor(borderColor);
         int fullRadius = circleRadius + borderWidth;
@@ -187,6 +187,18 @@ public class CircleCountView extends View {
         invalidate();
     }
 
+    /**
+     * Sets the render quality, which is driven by {@link BubbleLayout} in adaptive mode.
+     * Nothing is anti-aliased below {@link BubbleLayout#QUALITY_HIGH}.
+     * @param quality One of the BubbleLayout quality levels
+     */
+    void setRenderQuality(int quality) {
+        boolean antiAlias = (quality == BubbleLayout.QUALITY_HIGH);
+        this.circlePaint.setAntiAlias(antiAlias);
+        this.textPaint.setAntiAlias(antiAlias);
+        invalidate();
+    }
+
     public void setCount(int extraCount) {
         this.text = "+" + extraCount;
         requestLayout();
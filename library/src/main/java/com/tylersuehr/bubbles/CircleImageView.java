@@ -2,18 +2,32 @@ package com.tylersuehr.bubbles;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.graphics.Shader;
+import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.ColorInt;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.AppCompatImageView;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
 
 /**
  * Copyright © 2017 Tyler Suehr
@@ -25,6 +39,22 @@ import android.view.View;
  *      3. Crop the Drawable into Bitmap with the proper dimensions
  *      4. Draw the Bitmap in the center of the circle (leaving enough space for the border)
  *
+ * The cropped Bitmap is cached until the Drawable, size, or border width changes, so a
+ * redraw doesn't allocate anything. Animated Drawables (anything implementing
+ * {@link Animatable}, like AnimationDrawable, AnimatedImageDrawable or a GIF drawable)
+ * are drawn into a persistent frame Bitmap instead, which is painted into the circle
+ * through a {@link BitmapShader}. Animations are paused while this view is detached,
+ * hidden or scrolled off-screen, and redraws are throttled to {@link #maxFrameRate}.
+ *
+ * When given a source key by {@link BubbleLayout}, the cropped Bitmap is also shared
+ * through {@link BubbleCache}, which lets a restored layout skip decoding and cropping.
+ *
+ * The render quality is set by {@link BubbleLayout} in adaptive mode. Below
+ * {@link BubbleLayout#QUALITY_HIGH} the circles and animation frames aren't anti-aliased
+ * (crops keep their anti-aliased edge, since they're shared at any quality), and at
+ * {@link BubbleLayout#QUALITY_LOW} new crops are made at half resolution and source
+ * resources aren't decoded (only the back circle is shown as a placeholder).
+ *
  * Immutable Properties:
  * {@link #circleRadius} stores the radius based on the needed size.
  * {@link #viewSize} stores the smallest size of the view's dimensions.
@@ -33,15 +63,44 @@ import android.view.View;
  * @version 1.0
  */
 public class CircleImageView extends AppCompatImageView {
+    static final int DEFAULT_MAX_FRAME_RATE = 30;
+    private static final String LOW_RES_SUFFIX = "~low";
+
     private final Paint borderPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint maskPaint = new Paint(Paint.ANTI_ALIAS_FLAG); // Always anti-aliased, since crops are shared
     private final Paint mainPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint framePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint lowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     private final Rect circleRect = new Rect();
     private int borderWidth; // Width of the border around image
     private int borderColor; // Color of the border around image
     private int backColor; // Color of the area that's not the border
+    private int maxFrameRate; // Max redraws per second for animated drawables (0 = no limit)
+    private int renderQuality = BubbleLayout.QUALITY_HIGH;
     private int circleRadius;
     private int viewSize;
 
+    private String sourceKey; // Key of the rendered circle in BubbleCache
+    private int sourceRes; // Drawable resource to decode lazily if not cached
+    private Bitmap restoredCircle; // Rendered circle found in BubbleCache when restored
+    private boolean ignoreInvalidate; // True while the drawable is moved or drawn by us (or ImageView)
+    private Bitmap circleBitmap; // Cached crop of a static drawable
+    private Bitmap frameBitmap; // Reused for every frame of an animated drawable
+    private Canvas frameCanvas;
+    private long lastFrameTime;
+    private boolean frameScheduled;
+    private boolean pausedOffScreen;
+    private Rect visibleRect;
+    private ScreenListener screenListener;
+    private final Runnable frameInvalidator = new Runnable() {
+        @Override
+        public void run() {
+            frameScheduled = false;
+            lastFrameTime = SystemClock.uptimeMillis();
+            invalidate();
+        }
+    };
+
 
     public CircleImageView(Context context) {
         this(context, null);
@@ -60,6 +119,7 @@ public class CircleImageView extends AppCompatImageView {
         this.borderWidth = a.getDimensionPixelSize(R.styleable.CircleImageView_borderWidth, (int)(1f * dm.density)); // 1dp
         this.borderColor = a.getColor(R.styleable.CircleImageView_borderColor, ContextCompat.getColor(c, R.color.default_circle_border_color));
         this.backColor = a.getColor(R.styleable.CircleImageView_circleColor, ContextCompat.getColor(c, R.color.default_circle_text_color));
+        this.maxFrameRate = a.getInt(R.styleable.CircleImageView_maxFrameRate, DEFAULT_MAX_FRAME_RATE);
         a.recycle();
 
         // Setup border paint
@@ -90,20 +150,22 @@ public class CircleImageView extends AppCompatImageView {
         int viewHeight = getMeasuredHeight();
         this.viewSize = Math.min(viewWidth, viewHeight);
 
-        // Using that small size, calculate the exact center of the circle
-        this.circleRadius = (viewSize - (borderWidth * 2)) / 2;
-        this.circleRect.set(0, 0, viewSize, viewSize);
-
-        // Maximize available border size
+        // Maximize available border size (before the radius, since the crop is cached)
         if (viewSize == 0) { return; }
         if (viewSize / 3 < borderWidth) {
             this.borderWidth = viewSize / 3;
         }
 
-        // Take the drawable from the ImageView and crop it into a circle
+        // Using that small size, calculate the exact center of the circle
+        this.circleRadius = (viewSize - (borderWidth * 2)) / 2;
+        this.circleRect.set(0, 0, viewSize, viewSize);
+
+        // Take the drawable from the ImageView and crop it into a circle (only once)
         Drawable drawable = getDrawable();
-        Bitmap bitmap = cutIntoCircle(drawableToBitmap(drawable));
-        if (bitmap == null) {
+        if (circleBitmap == null && !(drawable instanceof Animatable)) {
+            this.circleBitmap = obtainCircle(drawable);
+        }
+        if (drawable == null && circleBitmap == null && sourceRes == 0 && restoredCircle == null) {
             return;
         }
 
@@ -115,12 +177,144 @@ public class CircleImageView extends AppCompatImageView {
         // Draw the back circle
         this.borderPaint.setColor(backColor);
         canvas.drawCircle(radius, radius, circleRadius, borderPaint); // Back circle
-        canvas.drawBitmap(bitmap, 0, 0, null); // Draw the image
+
+        // Animated drawables are painted through the frame shader (no per-frame allocation)
+        if (drawable instanceof Animatable) {
+            drawAnimatedFrame(canvas, drawable);
+            return;
+        }
+
+        // Only the placeholder is shown while low quality defers decoding
+        if (circleBitmap == null) {
+            return;
+        }
+        if (circleBitmap.getWidth() == viewSize) {
+            canvas.drawBitmap(circleBitmap, 0, 0, null); // Draw the image
+        } else {
+            canvas.drawBitmap(circleBitmap, null, circleRect, lowResPaint); // Draw the low resolution image
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        releaseBitmaps();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateAnimation();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        setAnimationRunning(false);
+        removeCallbacks(frameInvalidator);
+        this.frameScheduled = false;
+        stopWatchingScreen();
+        releaseBitmaps();
+    }
+
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateAnimation();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimation();
+    }
+
+    @Override
+    public void setImageDrawable(@Nullable Drawable drawable) {
+        Drawable old = getDrawable();
+        if (old != drawable && old instanceof Animatable) {
+            ((Animatable)old).stop();
+        }
+        this.ignoreInvalidate = true;
+        super.setImageDrawable(drawable);
+        this.ignoreInvalidate = false;
+        this.sourceKey = null;
+        this.sourceRes = 0;
+        this.restoredCircle = null;
+        releaseBitmaps();
+        updateAnimation();
+    }
+
+    @Override
+    public void setImageURI(@Nullable Uri uri) {
+        this.ignoreInvalidate = true;
+        super.setImageURI(uri);
+        this.ignoreInvalidate = false;
+        this.sourceKey = null;
+        this.sourceRes = 0;
+        this.restoredCircle = null;
+        releaseBitmaps();
+        updateAnimation();
+    }
+
+    /**
+     * ImageView moves the drawable to fit each layout, and the drawable invalidates itself
+     * for that (with its old bounds, so it looks just like a content change). The crop
+     * doesn't use the drawable's bounds, so those invalidations are ignored.
+     */
+    @Override
+    public void layout(int l, int t, int r, int b) {
+        this.ignoreInvalidate = true;
+        super.layout(l, t, r, b);
+        this.ignoreInvalidate = false;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        this.ignoreInvalidate = true;
+        super.setImageMatrix(matrix);
+        this.ignoreInvalidate = false;
+    }
+
+    /**
+     * Static drawables that invalidate themselves (outside of a layout) have new content,
+     * so drop the cached crop. Animated drawables invalidate on every frame, so throttle
+     * them instead, and pause them if they're off-screen.
+     */
+    @Override
+    public void invalidateDrawable(@NonNull Drawable dr) {
+        if (ignoreInvalidate) {
+            return;
+        }
+        if (dr == getDrawable()) {
+            if (!(dr instanceof Animatable)) {
+                evictCircle();
+            } else if (ViewCompat.isAttachedToWindow(this) && !isOnScreen()) {
+                pauseOffScreen();
+                return;
+            } else if (maxFrameRate > 0) {
+                long now = SystemClock.uptimeMillis();
+                long wait = lastFrameTime + (1000 / maxFrameRate) - now;
+                if (wait > 0) {
+                    if (!frameScheduled) {
+                        this.frameScheduled = true;
+                        postDelayed(frameInvalidator, wait);
+                    }
+                    return;
+                }
+                this.lastFrameTime = now;
+            }
+        }
+        super.invalidateDrawable(dr);
     }
 
     @Override
     protected void drawableStateChanged() {
         super.drawableStateChanged();
+        Drawable drawable = getDrawable();
+        if (drawable != null && drawable.isStateful()) {
+            evictCircle();
+        }
         invalidate();
     }
 
@@ -147,6 +341,8 @@ public class CircleImageView extends AppCompatImageView {
     public void setBorderWidth(int width) {
         this.borderWidth = width;
         this.borderPaint.setStrokeWidth(borderWidth);
+        this.restoredCircle = null; // Rendered with the old border
+        releaseBitmaps();
         invalidate();
     }
 
@@ -154,28 +350,331 @@ public class CircleImageView extends AppCompatImageView {
         return borderWidth;
     }
 
+    /**
+     * Sets the max amount of redraws per second for an animated drawable.
+     * @param maxFrameRate Frames per second, or 0 to redraw on every frame
+     */
+    public void setMaxFrameRate(int maxFrameRate) {
+        this.maxFrameRate = Math.max(0, maxFrameRate);
+    }
+
+    public int getMaxFrameRate() {
+        return maxFrameRate;
+    }
+
+    /**
+     * Sets the key used to share this view's rendered circle through {@link BubbleCache}.
+     * The key must change whenever the image does.
+     * @param sourceKey Key of the image, or null to not share the rendered circle
+     */
+    void setSourceKey(String sourceKey) {
+        this.sourceKey = sourceKey;
+        releaseBitmaps();
+        invalidate();
+    }
+
+    String getSourceKey() {
+        return sourceKey;
+    }
+
+    /**
+     * Sets the Drawable resource the image came from. Without a Drawable (like when
+     * restored), the resource is only decoded if {@link BubbleCache} doesn't have the
+     * rendered circle.
+     * @param res {@link DrawableRes}, or 0 if unknown
+     */
+    void setSourceRes(@DrawableRes int res) {
+        this.sourceRes = res;
+        releaseBitmaps();
+        invalidate();
+    }
+
+    @DrawableRes
+    int getSourceRes() {
+        return sourceRes;
+    }
+
+    /**
+     * Sets the rendered circle that {@link BubbleLayout} found in {@link BubbleCache} when
+     * restoring. It's kept as this view's image, so the bubble still draws if the cache
+     * evicts the circle before the first draw. It's dropped if the size or border changes.
+     * @param circle Rendered circle, or null
+     */
+    void setRestoredCircle(Bitmap circle) {
+        this.restoredCircle = circle;
+        releaseBitmaps();
+        invalidate();
+    }
+
+    /**
+     * Sets the render quality, which is driven by {@link BubbleLayout} in adaptive mode.
+     * @param quality One of the BubbleLayout quality levels
+     */
+    void setRenderQuality(int quality) {
+        if (renderQuality == quality) { return; }
+
+        // Crops keep their anti-aliased mask, so they look the same at any quality
+        boolean antiAlias = (quality == BubbleLayout.QUALITY_HIGH);
+        this.borderPaint.setAntiAlias(antiAlias);
+        this.framePaint.setAntiAlias(antiAlias);
+
+        // Render low resolution crops again at full resolution once the quality allows it
+        if (quality != BubbleLayout.QUALITY_LOW && circleBitmap != null && circleBitmap.getWidth() != viewSize) {
+            releaseBitmaps();
+        }
+        this.renderQuality = quality;
+        invalidate();
+    }
+
+    int getRenderQuality() {
+        return renderQuality;
+    }
+
+    /**
+     * Gets the amount of bytes held by the cached crop and animation frame Bitmaps.
+     * @return Byte count
+     */
+    @VisibleForTesting
+    long getRenderedBitmapBytes() {
+        long bytes = 0;
+        if (circleBitmap != null) { bytes += circleBitmap.getByteCount(); }
+        if (frameBitmap != null) { bytes += frameBitmap.getByteCount(); }
+        return bytes;
+    }
+
+    /**
+     * Checks if any part of this view is within the visible area of the window.
+     * @return True if on-screen
+     */
+    @VisibleForTesting
+    boolean isOnScreen() {
+        if (visibleRect == null) {
+            this.visibleRect = new Rect();
+        }
+        return getGlobalVisibleRect(visibleRect);
+    }
+
+    /**
+     * Resumes an animation that was paused off-screen, once this view is back on-screen.
+     */
+    @VisibleForTesting
+    void checkOnScreen() {
+        if (pausedOffScreen && isOnScreen()) {
+            stopWatchingScreen();
+            updateAnimation();
+            invalidate();
+        }
+    }
+
+    /**
+     * Draws the current frame of the animated drawable into the reused frame Bitmap, then
+     * paints it into the circle using the frame shader.
+     */
+    private void drawAnimatedFrame(Canvas canvas, Drawable drawable) {
+        if (frameBitmap == null) {
+            this.frameBitmap = Bitmap.createBitmap(viewSize, viewSize, Bitmap.Config.ARGB_8888);
+            this.frameCanvas = new Canvas(frameBitmap);
+            this.framePaint.setShader(new BitmapShader(frameBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP));
+        }
+
+        this.frameBitmap.eraseColor(Color.TRANSPARENT);
+        Rect bounds = drawable.getBounds();
+        int left = bounds.left, top = bounds.top, right = bounds.right, bottom = bounds.bottom;
+
+        // Moving the drawable isn't a new frame, but the frame it draws might schedule one
+        this.ignoreInvalidate = true;
+        drawable.setBounds(0, 0, viewSize, viewSize);
+        this.ignoreInvalidate = false;
+        drawable.draw(frameCanvas);
+        this.ignoreInvalidate = true;
+        drawable.setBounds(left, top, right, bottom);
+        this.ignoreInvalidate = false;
+
+        int radius = circleRadius + borderWidth;
+        canvas.drawCircle(radius, radius, circleRadius, framePaint);
+    }
+
+    /**
+     * Runs an animated drawable only while this view can actually be seen.
+     */
+    private void updateAnimation() {
+        setAnimationRunning(isShown() && getWindowVisibility() == VISIBLE && !pausedOffScreen);
+    }
+
+    /**
+     * Stops the animation while this view is scrolled off-screen, and watches scrolling
+     * and layout changes to find out when it comes back.
+     */
+    private void pauseOffScreen() {
+        if (pausedOffScreen) { return; }
+        this.pausedOffScreen = true;
+        setAnimationRunning(false);
+
+        if (screenListener == null) {
+            this.screenListener = new ScreenListener();
+        }
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.addOnScrollChangedListener(screenListener);
+        observer.addOnGlobalLayoutListener(screenListener);
+    }
+
+    private void stopWatchingScreen() {
+        if (!pausedOffScreen) { return; }
+        this.pausedOffScreen = false;
+
+        ViewTreeObserver observer = getViewTreeObserver();
+        observer.removeOnScrollChangedListener(screenListener);
+        observer.removeOnGlobalLayoutListener(screenListener);
+    }
+
+    private void setAnimationRunning(boolean running) {
+        Drawable drawable = getDrawable();
+        if (!(drawable instanceof Animatable)) {
+            return;
+        }
+
+        Animatable animatable = (Animatable)drawable;
+        if (running && !animatable.isRunning()) {
+            animatable.start();
+        } else if (!running && animatable.isRunning()) {
+            animatable.stop();
+        }
+    }
+
+    /**
+     * Gets the rendered circle from {@link BubbleCache}, or crops the drawable (or the
+     * source resource) into one and shares it if this view has a source key.
+     *
+     * At low quality, a full resolution circle is still used if it's cached, but new
+     * crops are made at half resolution and source resources aren't decoded at all.
+     */
+    private Bitmap obtainCircle(Drawable drawable) {
+        String renderKey = (sourceKey != null) ? BubbleCache.createRenderKey(sourceKey, viewSize, borderWidth) : null;
+        if (renderKey != null) {
+            Bitmap cached = BubbleCache.get(renderKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // A restored circle of the right size is used as is (and shared again). Otherwise
+        // it's dropped, since cropping a crop would scale its border ring in, so only the
+        // source resource (if any) can be drawn
+        if (restoredCircle != null) {
+            if (restoredCircle.getWidth() == viewSize) {
+                if (renderKey != null) {
+                    BubbleCache.put(getContext(), renderKey, restoredCircle);
+                }
+                return restoredCircle;
+            }
+            this.restoredCircle = null;
+        }
+
+        int cropSize = viewSize;
+        if (renderQuality == BubbleLayout.QUALITY_LOW) {
+            if (drawable == null) {
+                return null;
+            }
+            cropSize = Math.max(1, viewSize / 2);
+            renderKey = (renderKey != null) ? renderKey + LOW_RES_SUFFIX : null;
+            if (renderKey != null) {
+                Bitmap cached = BubbleCache.get(renderKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+
+        if (drawable == null && sourceRes != 0) {
+            drawable = ContextCompat.getDrawable(getContext(), sourceRes);
+        }
+        Bitmap circle = cutIntoCircle(drawableToBitmap(drawable, cropSize));
+        if (renderKey != null && circle != null) {
+            BubbleCache.put(getContext(), renderKey, circle);
+        }
+        return circle;
+    }
+
+    /**
+     * The drawable's content changed, so the rendered circle (and any shared copy of it)
+     * is stale.
+     */
+    private void evictCircle() {
+        if (sourceKey != null && viewSize > 0) {
+            String renderKey = BubbleCache.createRenderKey(sourceKey, viewSize, borderWidth);
+            BubbleCache.remove(renderKey);
+            BubbleCache.remove(renderKey + LOW_RES_SUFFIX);
+        }
+        releaseBitmaps();
+    }
+
+    /**
+     * Drops the cached crop and frame Bitmaps so they'll be recreated on the next draw.
+     * Shared circles stay in {@link BubbleCache}, so they're never recycled here.
+     */
+    private void releaseBitmaps() {
+        this.circleBitmap = null;
+        this.frameBitmap = null;
+        this.frameCanvas = null;
+
+        // Can be called by the super constructor, before our paints exist
+        if (framePaint != null) {
+            this.framePaint.setShader(null);
+        }
+    }
+
     private Bitmap cutIntoCircle(Bitmap bitmap) { // OutOfMemory Exception
         if (bitmap == null) { return null; }
 
-        Bitmap output = Bitmap.createBitmap(viewSize, viewSize, Bitmap.Config.ARGB_8888);
+        int cropSize = bitmap.getWidth();
+        Bitmap output = Bitmap.createBitmap(cropSize, cropSize, Bitmap.Config.ARGB_8888);
         int radius = circleRadius + borderWidth;
 
         Canvas canvas = new Canvas(output);
         canvas.drawARGB(0, 0, 0, 0);
-        canvas.drawCircle(radius, radius, circleRadius, borderPaint);
-        canvas.drawBitmap(bitmap, circleRect, circleRect, mainPaint);
+        if (cropSize != viewSize) {
+            // Low resolution crop, so scale the full size circle down
+            float scale = cropSize / (float)viewSize;
+            canvas.scale(scale, scale);
+        }
+        canvas.drawCircle(radius, radius, circleRadius, maskPaint);
+        canvas.drawBitmap(bitmap, null, circleRect, mainPaint);
+        bitmap.recycle();
 
         return output;
     }
 
-    private Bitmap drawableToBitmap(Drawable drawable) { // OutOfMemory Exception
+    private Bitmap drawableToBitmap(Drawable drawable, int size) { // OutOfMemory Exception
         if (drawable == null) { return null; }
 
-        Bitmap bitmap = Bitmap.createBitmap(viewSize, viewSize, Bitmap.Config.ARGB_8888);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(bitmap);
-        drawable.setBounds(0, 0, viewSize, viewSize);
+
+        // Don't let the crop's own bounds change evict the crop, and put the bounds back
+        Rect bounds = drawable.getBounds();
+        int left = bounds.left, top = bounds.top, right = bounds.right, bottom = bounds.bottom;
+        this.ignoreInvalidate = true;
+        drawable.setBounds(0, 0, size, size);
         drawable.draw(canvas);
+        drawable.setBounds(left, top, right, bottom);
+        this.ignoreInvalidate = false;
 
         return bitmap;
     }
+
+    /**
+     * Resumes an off-screen animation once scrolling or layout brings it back.
+     */
+    private final class ScreenListener implements ViewTreeObserver.OnScrollChangedListener,
+            ViewTreeObserver.OnGlobalLayoutListener {
+        @Override
+        public void onScrollChanged() {
+            checkOnScreen();
+        }
+
+        @Override
+        public void onGlobalLayout() {
+            checkOnScreen();
+        }
+    }
 }
\ No newline at end of file
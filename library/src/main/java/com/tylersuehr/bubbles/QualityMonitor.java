@@ -0,0 +1,251 @@
+package com.tylersuehr.bubbles;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+import android.view.Choreographer;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Watches frame timing and memory pressure for every attached {@link BubbleLayout} that
+ * uses adaptive quality, and tells them when to step their rendering quality down or back
+ * up. There's one monitor per process, so the layouts share a single set of callbacks.
+ *
+ * Frame timing comes from {@link Choreographer}, but frames are only sampled while the
+ * windows of the layouts are drawing (found with a {@link ViewTreeObserver.OnDrawListener}):
+ * a few frames over budget step the quality down, and a couple of seconds of smooth (or
+ * idle) frames step it back up one level. Once every layout is back at the best quality
+ * memory allows and nothing is drawing, no more frames are requested.
+ * Memory pressure comes from {@link ComponentCallbacks2} trim levels, which limit the
+ * quality right away. That limit is a ceiling smooth frames can't step past, so half
+ * resolution crops aren't rendered again at full size while memory is still low. It's
+ * only lifted by a lower trim level, by drawing again after the UI was hidden, or once
+ * no trim levels were reported for {@link #TRIM_COOLDOWN_MILLIS}.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+final class QualityMonitor implements Choreographer.FrameCallback, ComponentCallbacks2,
+        ViewTreeObserver.OnDrawListener {
+    /* A frame is janky if it takes longer than 1.5 frames at 60fps */
+    static final long JANK_THRESHOLD_NANOS = 25_000_000L;
+    /* Janky frames (since the last step) needed to step the quality down */
+    static final int JANK_FRAMES_TO_STEP_DOWN = 3;
+    /* Smooth frames in a row needed to step the quality back up (about 2 seconds) */
+    static final int SMOOTH_FRAMES_TO_STEP_UP = 120;
+    /* Time without trim levels after which memory pressure is assumed to be over */
+    static final long TRIM_COOLDOWN_MILLIS = 60_000L;
+
+    private static QualityMonitor instance;
+
+    private final List<BubbleLayout> layouts = new ArrayList<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable trimCooldown = new Runnable() {
+        @Override
+        public void run() {
+            liftMemoryCeiling();
+        }
+    };
+    private Context appContext;
+    private boolean frameScheduled;
+    private boolean drawn; // True if a window drew since the last sampled frame
+    private long lastFrameNanos;
+    private int jankFrames;
+    private int smoothFrames;
+    private int memoryCeiling = BubbleLayout.QUALITY_HIGH; // Best quality memory pressure allows
+    private String memoryReason; // What set the memory ceiling
+    private boolean uiHidden; // True after TRIM_MEMORY_UI_HIDDEN, until something draws again
+
+
+    @VisibleForTesting
+    QualityMonitor() {}
+
+    static QualityMonitor getInstance() {
+        if (instance == null) {
+            instance = new QualityMonitor();
+        }
+        return instance;
+    }
+
+    /**
+     * Starts monitoring the given attached layout.
+     * @param layout {@link BubbleLayout}
+     */
+    void add(BubbleLayout layout) {
+        if (layouts.contains(layout)) { return; }
+        if (layouts.isEmpty()) {
+            this.appContext = layout.getContext().getApplicationContext();
+            this.appContext.registerComponentCallbacks(this);
+        }
+        this.layouts.add(layout);
+        layout.getViewTreeObserver().addOnDrawListener(this);
+        if (memoryCeiling != BubbleLayout.QUALITY_HIGH) {
+            layout.limitQuality(memoryCeiling, memoryReason);
+        }
+    }
+
+    /**
+     * Stops monitoring the given layout, and stops all callbacks once no layouts are left.
+     * @param layout {@link BubbleLayout}
+     */
+    void remove(BubbleLayout layout) {
+        if (!layouts.remove(layout)) { return; }
+        layout.getViewTreeObserver().removeOnDrawListener(this);
+        if (layouts.isEmpty()) {
+            this.appContext.unregisterComponentCallbacks(this);
+            this.appContext = null;
+            stopSampling();
+        }
+    }
+
+    /**
+     * Checks if frames are being sampled (a frame callback is posted).
+     * @return True if sampling
+     */
+    @VisibleForTesting
+    boolean isSampling() {
+        return frameScheduled;
+    }
+
+    /**
+     * Gets the best quality allowed by memory pressure.
+     * @return Quality level
+     */
+    @VisibleForTesting
+    int getMemoryCeiling() {
+        return memoryCeiling;
+    }
+
+    @Override
+    public void onDraw() {
+        // Back in the foreground, so the memory pressure from before is stale
+        if (uiHidden) {
+            this.uiHidden = false;
+            liftMemoryCeiling();
+        }
+        this.drawn = true;
+        scheduleFrame();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        this.frameScheduled = false;
+        if (layouts.isEmpty()) { return; }
+
+        if (lastFrameNanos > 0) {
+            if (frameTimeNanos - lastFrameNanos > JANK_THRESHOLD_NANOS) {
+                this.smoothFrames = 0;
+                if (++jankFrames >= JANK_FRAMES_TO_STEP_DOWN) {
+                    this.jankFrames = 0;
+                    for (int i = 0; i < layouts.size(); i++) {
+                        this.layouts.get(i).lowerQuality("jank");
+                    }
+                }
+            } else if (++smoothFrames >= SMOOTH_FRAMES_TO_STEP_UP) {
+                this.smoothFrames = 0;
+                this.jankFrames = 0;
+                for (int i = 0; i < layouts.size(); i++) {
+                    if (layouts.get(i).getQualityLevel() > memoryCeiling) {
+                        this.layouts.get(i).raiseQuality("idle");
+                    }
+                }
+            }
+        }
+        this.lastFrameNanos = frameTimeNanos;
+
+        // Keep sampling while drawing, or while waiting to step back up
+        if (drawn || !isAllAtMemoryCeiling()) {
+            this.drawn = false;
+            scheduleFrame();
+        } else {
+            stopSampling();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Levels past UI_HIDDEN mean we're not visible, so quality doesn't matter
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            this.uiHidden = true;
+            return;
+        }
+
+        // Each level sets the ceiling, so a lower level than before lifts it
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            setMemoryCeiling(BubbleLayout.QUALITY_LOW, "trim memory " + level);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            setMemoryCeiling(BubbleLayout.QUALITY_MEDIUM, "trim memory " + level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        setMemoryCeiling(BubbleLayout.QUALITY_LOW, "low memory");
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Limits every layout to the given quality until the memory pressure is over. Raising
+     * the ceiling doesn't raise the quality, smooth frames step it back up to the ceiling.
+     */
+    private void setMemoryCeiling(int level, String reason) {
+        boolean raised = level < memoryCeiling;
+        this.memoryCeiling = level;
+        this.memoryReason = reason;
+        for (int i = 0; i < layouts.size(); i++) {
+            this.layouts.get(i).limitQuality(level, reason);
+        }
+
+        this.handler.removeCallbacks(trimCooldown);
+        if (level != BubbleLayout.QUALITY_HIGH) {
+            this.handler.postDelayed(trimCooldown, TRIM_COOLDOWN_MILLIS);
+        }
+        if (raised) {
+            scheduleFrame();
+        }
+    }
+
+    private void liftMemoryCeiling() {
+        if (memoryCeiling != BubbleLayout.QUALITY_HIGH) {
+            setMemoryCeiling(BubbleLayout.QUALITY_HIGH, null);
+        }
+    }
+
+    private boolean isAllAtMemoryCeiling() {
+        for (int i = 0; i < layouts.size(); i++) {
+            if (layouts.get(i).getQualityLevel() > memoryCeiling) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scheduleFrame() {
+        if (frameScheduled || layouts.isEmpty()) { return; }
+        this.frameScheduled = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stops requesting frames. The next sample starts over, so the gap isn't seen as jank.
+     */
+    private void stopSampling() {
+        if (frameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+        this.frameScheduled = false;
+        this.drawn = false;
+        this.lastFrameNanos = 0;
+        this.jankFrames = 0;
+        this.smoothFrames = 0;
+    }
+}
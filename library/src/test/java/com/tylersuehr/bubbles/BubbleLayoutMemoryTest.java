@@ -0,0 +1,272 @@
+package com.tylersuehr.bubbles;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Headless soak suite that binds, rebinds and clears thousands of {@link BubbleLayout}
+ * instances to catch bubble bitmap leaks on the JVM, without a device or emulator.
+ *
+ * Every Bitmap handed to a layout and every bubble view the layout creates is tracked by
+ * a weak reference. After each round the suite forces garbage collection and fails if:
+ *      1. Any tracked Bitmap, CircleImageView or CircleCountView is still reachable.
+ *      2. The used heap keeps growing from one round to the next.
+ *      3. A detached layout still holds rendered bubble Bitmaps.
+ *      4. The rendered circles of keyed and resource bubbles grow {@link BubbleCache}
+ *         past its max size.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class BubbleLayoutMemoryTest {
+    private static final int ROUNDS = 6;
+    private static final int LAYOUTS_PER_ROUND = 500; // 3000 layouts in total
+    private static final int BUBBLES_PER_LAYOUT = 8;
+    private static final int BUBBLE_PEEK = 4;
+    private static final int BUBBLE_SIZE = 64;
+    private static final long MAX_HEAP_GROWTH = 8L * 1024 * 1024; // 8MB
+    private static final int MAX_GC_ATTEMPTS = 20;
+    private static final int[] RESOURCES = {
+            android.R.drawable.ic_menu_add,
+            android.R.drawable.ic_menu_delete,
+            android.R.drawable.ic_menu_edit
+    };
+
+    private final List<WeakReference<Bitmap>> bitmaps = new ArrayList<>();
+    private final List<WeakReference<View>> bubbles = new ArrayList<>();
+    private FrameLayout root;
+    private int keyCount = 0;
+
+
+    @Before
+    public void setUp() {
+        this.root = BubbleTestHelper.createRoot();
+        BubbleCache.clear();
+    }
+
+    @Test
+    public void soak_bindRebindClear_doesNotLeak() {
+        long baselineHeap = -1;
+        long gcCountBefore = getGcCount();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < LAYOUTS_PER_ROUND; i++) {
+                BubbleLayout layout = addLayout();
+
+                // Bind, rebind, then clear while attached
+                bind(layout);
+                BubbleTestHelper.drawLayout(layout);
+                layout.clearBubbles();
+                bind(layout);
+                BubbleTestHelper.drawLayout(layout);
+                layout.clearBubbles();
+
+                // Bind once more and detach with its bubbles still inside
+                bind(layout);
+                BubbleTestHelper.drawLayout(layout);
+                root.removeView(layout);
+            }
+
+            // The cache is bounded on its own, so empty it to measure only what leaked
+            assertCacheBounded("round " + round);
+            BubbleCache.clear();
+
+            forceGc();
+            long usedHeap = getUsedHeap();
+            long gcCount = getGcCount() - gcCountBefore;
+            assertNoLiveBubbles("round " + round + " (heap " + usedHeap + " bytes, " + gcCount + " GCs so far)");
+
+            // Round 0 warms up class loading and caches, so use round 1 as the baseline
+            if (round == 1) {
+                baselineHeap = usedHeap;
+            } else if (round > 1) {
+                assertTrue("Heap grew from " + baselineHeap + " to " + usedHeap
+                        + " bytes by round " + round + " (" + gcCount + " GCs so far)",
+                        usedHeap - baselineHeap <= MAX_HEAP_GROWTH);
+            }
+
+            bitmaps.clear();
+            bubbles.clear();
+        }
+    }
+
+    @Test
+    public void clearBubbles_releasesBitmapsWhileLayoutIsAlive() {
+        BubbleLayout layout = addLayout();
+
+        bind(layout);
+        BubbleTestHelper.drawLayout(layout);
+        layout.clearBubbles();
+
+        forceGc();
+        assertEquals(0, layout.getChildCount());
+        assertNoLiveBubbles("cleared layout");
+    }
+
+    @Test
+    public void keyedBubbles_cacheIsReleasedOnTrimMemory() {
+        BubbleLayout layout = addLayout();
+
+        bind(layout);
+        BubbleTestHelper.drawLayout(layout);
+        assertTrue("Keyed circles were cached", BubbleCache.size() > 0);
+
+        // Adaptive quality is off, the cache is trimmed on its own
+        assertFalse(layout.isAdaptiveQuality());
+        root.getContext().getApplicationContext().onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals("Cache bytes after trim", 0, BubbleCache.size());
+    }
+
+    @Test
+    public void detachedLayout_dropsRenderedBitmaps() {
+        BubbleLayout layout = addLayout();
+
+        bind(layout);
+        BubbleTestHelper.drawLayout(layout);
+        root.removeView(layout);
+
+        long renderedBytes = 0;
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            View child = layout.getChildAt(i);
+            if (child instanceof CircleImageView) {
+                renderedBytes += ((CircleImageView)child).getRenderedBitmapBytes();
+            }
+        }
+        assertEquals("Rendered Bitmap bytes kept by detached layout", 0, renderedBytes);
+    }
+
+    @Test
+    public void detachedLayout_releasesBitmapsOnceDropped() {
+        BubbleLayout layout = addLayout();
+
+        bind(layout);
+        BubbleTestHelper.drawLayout(layout);
+        root.removeView(layout);
+        layout = null;
+
+        forceGc();
+        assertNoLiveBubbles("detached layout");
+    }
+
+
+    private BubbleLayout addLayout() {
+        return BubbleTestHelper.addLayout(root, BUBBLE_SIZE, BUBBLE_PEEK);
+    }
+
+    /**
+     * Adds bubbles past the peek so both bubble types get created, cycling through the
+     * Bitmap, Drawable, keyed Bitmap and resource overloads, and tracks every Bitmap that
+     * was handed over (resource Bitmaps belong to the Resources, so they aren't tracked).
+     */
+    private void bind(BubbleLayout layout) {
+        for (int i = 0; i < BUBBLES_PER_LAYOUT; i++) {
+            if (i % 4 == 3) {
+                layout.addBubble(RESOURCES[i % RESOURCES.length]);
+                continue;
+            }
+
+            Bitmap bitmap = Bitmap.createBitmap(BUBBLE_SIZE, BUBBLE_SIZE, Bitmap.Config.ARGB_8888);
+            this.bitmaps.add(new WeakReference<>(bitmap));
+            if (i % 4 == 0) {
+                layout.addBubble(bitmap);
+            } else if (i % 4 == 1) {
+                layout.addBubble(new BitmapDrawable(root.getResources(), bitmap));
+            } else {
+                layout.addBubble(bitmap, "soak:" + (keyCount++));
+            }
+        }
+        for (int i = 0; i < layout.getChildCount(); i++) {
+            this.bubbles.add(new WeakReference<>(layout.getChildAt(i)));
+        }
+    }
+
+    private void assertNoLiveBubbles(String when) {
+        int liveImages = 0, liveCounts = 0;
+        for (WeakReference<View> ref : bubbles) {
+            View view = ref.get();
+            if (view instanceof CircleImageView) {
+                liveImages++;
+            } else if (view instanceof CircleCountView) {
+                liveCounts++;
+            }
+        }
+        assertEquals("Live Bitmap bytes after " + when, 0, getLiveBitmapBytes());
+        assertEquals("Retained CircleImageViews after " + when, 0, liveImages);
+        assertEquals("Retained CircleCountViews after " + when, 0, liveCounts);
+    }
+
+    private static void assertCacheBounded(String when) {
+        assertTrue("Cache holds " + BubbleCache.size() + " of max " + BubbleCache.maxSize()
+                + " bytes after " + when, BubbleCache.size() <= BubbleCache.maxSize());
+    }
+
+    private long getLiveBitmapBytes() {
+        long bytes = 0;
+        for (WeakReference<Bitmap> ref : bitmaps) {
+            Bitmap bitmap = ref.get();
+            if (bitmap != null) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Keeps requesting collections until every tracked reference is cleared, or until
+     * we've tried enough times that whatever is left must be strongly reachable.
+     */
+    private void forceGc() {
+        for (int i = 0; i < MAX_GC_ATTEMPTS && hasLiveReferences(); i++) {
+            System.gc();
+            System.runFinalization();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ignored) {}
+        }
+        System.gc();
+    }
+
+    private boolean hasLiveReferences() {
+        for (WeakReference<Bitmap> ref : bitmaps) {
+            if (ref.get() != null) { return true; }
+        }
+        for (WeakReference<View> ref : bubbles) {
+            if (ref.get() != null) { return true; }
+        }
+        return false;
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+}
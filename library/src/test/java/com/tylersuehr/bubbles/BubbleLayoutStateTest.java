@@ -0,0 +1,195 @@
+package com.tylersuehr.bubbles;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.view.AbsSavedState;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Tests saving and restoring the bubbles of a {@link BubbleLayout}, including restoring
+ * after {@link BubbleCache} evicted the rendered circles, and the keys of resource bubbles.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class BubbleLayoutStateTest {
+    private static final int BUBBLE_SIZE = 64;
+    private static final int BUBBLE_PEEK = 3;
+
+    private FrameLayout root;
+
+
+    @Before
+    public void setUp() {
+        this.root = BubbleTestHelper.createRoot();
+        BubbleCache.clear();
+    }
+
+    @Test
+    public void savedState_roundTripsThroughParcel() {
+        BubbleLayout.SavedState ss = new BubbleLayout.SavedState(AbsSavedState.EMPTY_STATE);
+        ss.excess = 7;
+        ss.keys = new String[] { "a", null, "c" };
+        ss.resources = new int[] { 0, android.R.drawable.ic_menu_add, 0 };
+
+        Parcel parcel = Parcel.obtain();
+        ss.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        BubbleLayout.SavedState restored = BubbleLayout.SavedState.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertEquals(7, restored.excess);
+        assertArrayEquals(ss.keys, restored.keys);
+        assertArrayEquals(ss.resources, restored.resources);
+    }
+
+    @Test
+    public void restore_addsSavedBubblesAndCount() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        layout.addBubble(createBitmap(), "b");
+        layout.addBubble(createBitmap(), "c"); // Excess
+        layout.addBubble(createBitmap(), "d"); // Excess
+        BubbleTestHelper.drawLayout(layout);
+
+        BubbleLayout restored = restore(layout.onSaveInstanceState());
+        assertEquals(BUBBLE_PEEK + 1, restored.getChildCount());
+        assertEquals("a", ((CircleImageView)restored.getChildAt(0)).getSourceKey());
+        assertEquals(android.R.drawable.ic_menu_add, ((CircleImageView)restored.getChildAt(1)).getSourceRes());
+        assertEquals("b", ((CircleImageView)restored.getChildAt(2)).getSourceKey());
+        assertEquals("+2", ((CircleCountView)restored.getChildAt(BUBBLE_PEEK)).getText());
+    }
+
+    @Test
+    public void restore_drawsCirclesEvictedBeforeFirstDraw() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        layout.addBubble(createBitmap(), "b");
+        BubbleTestHelper.drawLayout(layout);
+
+        BubbleLayout restored = restore(layout.onSaveInstanceState());
+        BubbleCache.clear();
+        BubbleTestHelper.drawLayout(restored);
+
+        for (int i = 0; i < restored.getChildCount(); i++) {
+            CircleImageView image = (CircleImageView)restored.getChildAt(i);
+            assertTrue("Bubble " + i + " has a rendered circle", image.getRenderedBitmapBytes() > 0);
+        }
+    }
+
+    @Test
+    public void restore_dropsCircleWhenBubbleSizeChanges() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        BubbleTestHelper.drawLayout(layout);
+
+        BubbleLayout restored = restore(layout.onSaveInstanceState());
+        BubbleCache.clear();
+        restored.setBubbleSize(BUBBLE_SIZE / 2);
+        BubbleTestHelper.drawLayout(restored);
+
+        // The keyed circle isn't cropped again, but the resource is decoded at the new size
+        assertEquals(0, ((CircleImageView)restored.getChildAt(0)).getRenderedBitmapBytes());
+        assertTrue(((CircleImageView)restored.getChildAt(1)).getRenderedBitmapBytes() > 0);
+    }
+
+    @Test
+    public void resourceBubble_isKeyedByConfiguration() {
+        Configuration night = new Configuration(root.getResources().getConfiguration());
+        night.uiMode = Configuration.UI_MODE_NIGHT_YES | Configuration.UI_MODE_TYPE_NORMAL;
+        Context nightContext = root.getContext().createConfigurationContext(night);
+
+        BubbleLayout layout = createLayout();
+        BubbleLayout nightLayout = new BubbleLayout(nightContext);
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        nightLayout.addBubble(android.R.drawable.ic_menu_add);
+
+        String key = ((CircleImageView)layout.getChildAt(0)).getSourceKey();
+        String nightKey = ((CircleImageView)nightLayout.getChildAt(0)).getSourceKey();
+        assertNotEquals(key, nightKey);
+    }
+
+    @Test
+    public void resourceBubble_withCachedCircle_isNotDecoded() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        assertNotNull(((CircleImageView)layout.getChildAt(0)).getDrawable());
+        BubbleTestHelper.drawLayout(layout);
+
+        // Rebinding takes the circle from the cache
+        layout.clearBubbles();
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        CircleImageView image = (CircleImageView)layout.getChildAt(0);
+        assertNull(image.getDrawable());
+        BubbleTestHelper.drawLayout(layout);
+        assertTrue(image.getRenderedBitmapBytes() > 0);
+    }
+
+    @Test
+    public void restore_withUncachedKeyedBubble_restoresNothing() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        layout.addBubble(android.R.drawable.ic_menu_add);
+        BubbleTestHelper.drawLayout(layout);
+
+        Parcelable state = layout.onSaveInstanceState();
+        BubbleCache.clear();
+        assertEquals(0, restore(state).getChildCount());
+    }
+
+    @Test
+    public void restore_withUnkeyedBubble_restoresNothing() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        layout.addBubble(createBitmap());
+        BubbleTestHelper.drawLayout(layout);
+
+        assertEquals(0, restore(layout.onSaveInstanceState()).getChildCount());
+    }
+
+    @Test
+    public void restore_keepsBubblesBoundAgain() {
+        BubbleLayout layout = createLayout();
+        layout.addBubble(createBitmap(), "a");
+        BubbleTestHelper.drawLayout(layout);
+        Parcelable state = layout.onSaveInstanceState();
+
+        BubbleLayout restored = createLayout();
+        restored.addBubble(createBitmap(), "b");
+        restored.onRestoreInstanceState(state);
+        assertEquals(1, restored.getChildCount());
+        assertEquals("b", ((CircleImageView)restored.getChildAt(0)).getSourceKey());
+    }
+
+
+    private BubbleLayout createLayout() {
+        return BubbleTestHelper.addLayout(root, BUBBLE_SIZE, BUBBLE_PEEK);
+    }
+
+    private BubbleLayout restore(Parcelable state) {
+        BubbleLayout layout = createLayout();
+        layout.onRestoreInstanceState(state);
+        return layout;
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(BUBBLE_SIZE, BUBBLE_SIZE, Bitmap.Config.ARGB_8888);
+    }
+}
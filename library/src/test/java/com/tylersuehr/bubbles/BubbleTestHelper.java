@@ -0,0 +1,60 @@
+package com.tylersuehr.bubbles;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import org.robolectric.Robolectric;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Shared fixture of the Robolectric suites: a root view attached to an Activity's window,
+ * and helpers to add and fully draw a {@link BubbleLayout} in it.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+final class BubbleTestHelper {
+    private BubbleTestHelper() {}
+
+    /**
+     * Creates a root view in a started Activity, so views added to it are attached.
+     * @return Root view
+     */
+    static FrameLayout createRoot() {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        FrameLayout root = new FrameLayout(activity);
+        activity.setContentView(root);
+        return root;
+    }
+
+    /**
+     * Creates a layout with the given bubble size and peek, and adds it to the root.
+     * @return {@link BubbleLayout}
+     */
+    static BubbleLayout addLayout(ViewGroup root, int bubbleSize, int bubblePeek) {
+        BubbleLayout layout = new BubbleLayout(root.getContext());
+        layout.setBubbleSize(bubbleSize);
+        layout.setBubblePeek(bubblePeek);
+        root.addView(layout);
+        return layout;
+    }
+
+    /**
+     * Measures, lays out and draws the layout so each bubble runs its full draw path.
+     */
+    static void drawLayout(BubbleLayout layout) {
+        int spec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+        layout.measure(spec, spec);
+        layout.layout(0, 0, layout.getMeasuredWidth(), layout.getMeasuredHeight());
+
+        Bitmap target = Bitmap.createBitmap(Math.max(1, layout.getMeasuredWidth()),
+                Math.max(1, layout.getMeasuredHeight()), Bitmap.Config.ARGB_8888);
+        layout.draw(new Canvas(target));
+        target.recycle();
+    }
+}
@@ -0,0 +1,218 @@
+package com.tylersuehr.bubbles;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.view.View;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Tests the frame-rate throttle and off-screen pausing of animated bubbles, and when the
+ * cached crop of a static bubble is dropped.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class CircleImageViewTest {
+    private static final int IMAGE_SIZE = 64;
+
+    private FrameLayout root;
+    private TestAnimatedDrawable drawable;
+    private CountingImageView view;
+
+
+    @Before
+    public void setUp() {
+        this.root = BubbleTestHelper.createRoot();
+
+        this.drawable = new TestAnimatedDrawable();
+        this.view = new CountingImageView(root.getContext());
+        this.view.setImageDrawable(drawable);
+        this.root.addView(view);
+
+        // Start well past the first throttle interval
+        advanceBy(1000);
+    }
+
+    @Test
+    public void attachedView_startsAnimation() {
+        assertTrue(drawable.isRunning());
+    }
+
+    @Test
+    public void invalidateDrawable_isThrottledToMaxFrameRate() {
+        view.setMaxFrameRate(10); // One frame every 100ms
+        view.invalidates = 0;
+
+        // The first frame goes through, the rest are folded into one delayed redraw
+        for (int i = 0; i < 5; i++) {
+            view.invalidateDrawable(drawable);
+        }
+        assertEquals(1, view.invalidates);
+
+        advanceBy(50);
+        assertEquals(1, view.invalidates);
+        advanceBy(50);
+        assertEquals(2, view.invalidates);
+
+        // Nothing else was scheduled
+        advanceBy(500);
+        assertEquals(2, view.invalidates);
+    }
+
+    @Test
+    public void invalidateDrawable_isNotThrottledWithoutMaxFrameRate() {
+        view.setMaxFrameRate(0);
+        view.invalidates = 0;
+
+        for (int i = 0; i < 5; i++) {
+            view.invalidateDrawable(drawable);
+        }
+        assertEquals(5, view.invalidates);
+    }
+
+    @Test
+    public void offScreenView_pausesUntilBackOnScreen() {
+        view.onScreen = false;
+        view.invalidates = 0;
+
+        view.invalidateDrawable(drawable);
+        assertFalse(drawable.isRunning());
+        assertEquals(0, view.invalidates);
+
+        view.onScreen = true;
+        view.checkOnScreen();
+        assertTrue(drawable.isRunning());
+        assertEquals(1, view.invalidates);
+    }
+
+    @Test
+    public void colorFilter_dropsCrop() {
+        CircleImageView image = createStaticImage();
+        drawImage(image);
+        assertTrue(image.getRenderedBitmapBytes() > 0);
+
+        image.setColorFilter(Color.BLUE);
+        assertEquals(0, image.getRenderedBitmapBytes());
+        drawImage(image);
+        assertTrue(image.getRenderedBitmapBytes() > 0);
+    }
+
+    @Test
+    public void imageAlpha_dropsCrop() {
+        CircleImageView image = createStaticImage();
+        drawImage(image);
+
+        image.setImageAlpha(128);
+        assertEquals(0, image.getRenderedBitmapBytes());
+    }
+
+    @Test
+    public void relayoutMovingDrawable_keepsCrop() {
+        CircleImageView image = createStaticImage();
+        drawImage(image);
+        long bytes = image.getRenderedBitmapBytes();
+
+        // Stretches the drawable to the view, which changes its bounds on the next layout
+        image.setScaleType(ImageView.ScaleType.FIT_XY);
+        layoutImage(image);
+        assertEquals(IMAGE_SIZE, image.getDrawable().getBounds().width());
+        assertEquals(bytes, image.getRenderedBitmapBytes());
+    }
+
+    @Test
+    public void detachedView_stopsAnimation() {
+        root.removeView(view);
+        assertFalse(drawable.isRunning());
+    }
+
+
+    private static void advanceBy(long millis) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts redraw requests, and reports an on-screen state set by the test since
+     * Robolectric doesn't lay out the window.
+     */
+    private CircleImageView createStaticImage() {
+        Bitmap bitmap = Bitmap.createBitmap(IMAGE_SIZE / 2, IMAGE_SIZE / 2, Bitmap.Config.ARGB_8888);
+        CircleImageView image = new CircleImageView(root.getContext());
+        image.setImageDrawable(new BitmapDrawable(root.getResources(), bitmap));
+        layoutImage(image); // Not attached, so only the test lays it out
+        return image;
+    }
+
+    private static void layoutImage(CircleImageView image) {
+        int spec = View.MeasureSpec.makeMeasureSpec(IMAGE_SIZE, View.MeasureSpec.EXACTLY);
+        image.measure(spec, spec);
+        image.layout(0, 0, IMAGE_SIZE, IMAGE_SIZE);
+    }
+
+    private static void drawImage(CircleImageView image) {
+        image.draw(new Canvas(Bitmap.createBitmap(IMAGE_SIZE, IMAGE_SIZE, Bitmap.Config.ARGB_8888)));
+    }
+
+    private static final class CountingImageView extends CircleImageView {
+        int invalidates = 0;
+        boolean onScreen = true;
+
+        CountingImageView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void invalidate() {
+            this.invalidates++;
+            super.invalidate();
+        }
+
+        @Override
+        boolean isOnScreen() {
+            return onScreen;
+        }
+    }
+
+    private static final class TestAnimatedDrawable extends ColorDrawable implements Animatable {
+        private boolean running;
+
+        TestAnimatedDrawable() {
+            super(Color.RED);
+        }
+
+        @Override
+        public void start() {
+            this.running = true;
+        }
+
+        @Override
+        public void stop() {
+            this.running = false;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.tylersuehr.bubbles;
+
+import android.content.ComponentCallbacks2;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright © 2017 Tyler Suehr
+ *
+ * Tests the adaptive quality steps of {@link QualityMonitor} by driving its frame and
+ * memory trim callbacks directly with synthetic frame times, and the memory limit that
+ * smooth frames can't step past.
+ *
+ * @author Tyler Suehr
+ * @version 1.0
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class QualityMonitorTest {
+    private static final long SMOOTH_FRAME_NANOS = 16_000_000L;
+    private static final long JANK_FRAME_NANOS = QualityMonitor.JANK_THRESHOLD_NANOS + 1;
+
+    private final List<String> changes = new ArrayList<>();
+    private QualityMonitor monitor;
+    private BubbleLayout layout;
+    private long frameTime = 1;
+
+
+    @Before
+    public void setUp() {
+        FrameLayout root = BubbleTestHelper.createRoot();
+
+        // Only the test drives frames, so keep the posted frame callbacks from running
+        Robolectric.getForegroundThreadScheduler().pause();
+
+        this.layout = new BubbleLayout(root.getContext());
+        this.layout.setOnQualityChangeListener(new BubbleLayout.OnQualityChangeListener() {
+            @Override
+            public void onQualityChanged(BubbleLayout layout, int oldLevel, int newLevel, String reason) {
+                changes.add(oldLevel + "->" + newLevel + " " + reason);
+            }
+        });
+        root.addView(layout);
+
+        this.monitor = new QualityMonitor();
+        this.monitor.add(layout);
+        drawFrame(0); // First sample only sets the start time
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.remove(layout);
+    }
+
+    @Test
+    public void jankFrames_stepQualityDownOneLevelAtATime() {
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN - 1, JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+
+        drawFrame(JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN, JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        // Already at the lowest level
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN, JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+        assertEquals(2, layout.getQualityChangeCount());
+        assertEquals(listOf("0->1 jank", "1->2 jank"), changes);
+    }
+
+    @Test
+    public void smoothFrames_stepQualityUpOneLevelAtATime() {
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN * 2, JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP - 1, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        drawFrame(SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+        assertEquals(4, layout.getQualityChangeCount());
+        assertEquals(listOf("0->1 jank", "1->2 jank", "2->1 idle", "1->0 idle"), changes);
+    }
+
+    @Test
+    public void jankFrame_restartsSmoothCount() {
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN, JANK_FRAME_NANOS);
+
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP - 1, SMOOTH_FRAME_NANOS);
+        drawFrame(JANK_FRAME_NANOS);
+        drawFrame(SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+    }
+
+    @Test
+    public void trimMemory_limitsQualityByLevel() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        // Never raises the quality
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        assertEquals(2, layout.getQualityChangeCount());
+        assertEquals(listOf("0->1 trim memory " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+                "1->2 trim memory " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW), changes);
+    }
+
+    @Test
+    public void trimMemory_criticalLimitsToLow() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+    }
+
+    @Test
+    public void trimMemory_whileHiddenIsIgnored() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+        assertEquals(0, layout.getQualityChangeCount());
+    }
+
+    @Test
+    public void lowMemory_limitsToLow() {
+        monitor.onLowMemory();
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+        assertEquals(listOf("0->2 low memory"), changes);
+    }
+
+    @Test
+    public void idleAtHighQuality_stopsSampling() {
+        assertTrue(monitor.isSampling());
+
+        // A frame where nothing drew
+        idleFrame(SMOOTH_FRAME_NANOS);
+        assertFalse(monitor.isSampling());
+
+        // Drawing starts sampling again
+        monitor.onDraw();
+        assertTrue(monitor.isSampling());
+    }
+
+    @Test
+    public void idleBelowHighQuality_keepsSamplingUntilBackToHigh() {
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN, JANK_FRAME_NANOS);
+        assertTrue(monitor.isSampling());
+
+        for (int i = 0; i < QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP - 1; i++) {
+            idleFrame(SMOOTH_FRAME_NANOS);
+            assertTrue(monitor.isSampling());
+        }
+        idleFrame(SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+        assertEquals("1->0 idle", changes.get(changes.size() - 1));
+        assertFalse(monitor.isSampling());
+    }
+
+    @Test
+    public void trimLimit_isNotRaisedBySmoothFrames() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP * 3, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        // Already at the ceiling, so idle frames stop sampling
+        idleFrame(SMOOTH_FRAME_NANOS);
+        assertFalse(monitor.isSampling());
+        assertEquals(listOf("0->2 trim memory " + ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW), changes);
+    }
+
+    @Test
+    public void jankRecovery_stepsUpOnlyToTrimLimit() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        drawFrames(QualityMonitor.JANK_FRAMES_TO_STEP_DOWN, JANK_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP * 2, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+        assertEquals("2->1 idle", changes.get(changes.size() - 1));
+    }
+
+    @Test
+    public void lowerTrimLevel_liftsLimit() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, monitor.getMemoryCeiling());
+        assertTrue(monitor.isSampling());
+
+        // Only smooth frames raise the quality, and only up to the new limit
+        assertEquals(BubbleLayout.QUALITY_LOW, layout.getQualityLevel());
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP * 2, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+    }
+
+    @Test
+    public void returnToForeground_liftsLimit() {
+        monitor.onLowMemory();
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(BubbleLayout.QUALITY_LOW, monitor.getMemoryCeiling());
+
+        // Drawing again after the UI was hidden
+        drawFrames(QualityMonitor.SMOOTH_FRAMES_TO_STEP_UP * 2, SMOOTH_FRAME_NANOS);
+        assertEquals(BubbleLayout.QUALITY_HIGH, monitor.getMemoryCeiling());
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+    }
+
+    @Test
+    public void trimCooldown_liftsLimit() {
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Robolectric.getForegroundThreadScheduler().advanceBy(QualityMonitor.TRIM_COOLDOWN_MILLIS - 1,
+                TimeUnit.MILLISECONDS);
+        assertEquals(BubbleLayout.QUALITY_LOW, monitor.getMemoryCeiling());
+
+        // Another trim level restarts the cooldown
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Robolectric.getForegroundThreadScheduler().advanceBy(QualityMonitor.TRIM_COOLDOWN_MILLIS - 1,
+                TimeUnit.MILLISECONDS);
+        assertEquals(BubbleLayout.QUALITY_LOW, monitor.getMemoryCeiling());
+
+        Robolectric.getForegroundThreadScheduler().advanceBy(1, TimeUnit.MILLISECONDS);
+        assertEquals(BubbleLayout.QUALITY_HIGH, monitor.getMemoryCeiling());
+    }
+
+    @Test
+    public void sharedMonitor_stepsEveryLayout() {
+        BubbleLayout other = new BubbleLayout(layout.getContext());
+        ((FrameLayout)layout.getParent()).addView(other);
+        monitor.add(other);
+
+        monitor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, layout.getQualityLevel());
+        assertEquals(BubbleLayout.QUALITY_MEDIUM, other.getQualityLevel());
+
+        // Still sampling for the layout that's left
+        monitor.remove(other);
+        assertTrue(monitor.isSampling());
+    }
+
+    @Test
+    public void removedLayout_stopsSamplingAndChanges() {
+        monitor.remove(layout);
+        assertFalse(monitor.isSampling());
+
+        monitor.onLowMemory();
+        monitor.onDraw();
+        assertFalse(monitor.isSampling());
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+    }
+
+    @Test
+    public void adaptiveQualityOff_returnsToHigh() {
+        monitor.onLowMemory();
+        layout.setAdaptiveQuality(false);
+        assertEquals(BubbleLayout.QUALITY_HIGH, layout.getQualityLevel());
+        assertEquals(listOf("0->2 low memory", "2->0 adaptive quality off"), changes);
+    }
+
+
+    private void drawFrames(int count, long frameNanos) {
+        for (int i = 0; i < count; i++) {
+            drawFrame(frameNanos);
+        }
+    }
+
+    private void drawFrame(long frameNanos) {
+        monitor.onDraw();
+        idleFrame(frameNanos);
+    }
+
+    private void idleFrame(long frameNanos) {
+        this.frameTime += frameNanos;
+        this.monitor.doFrame(frameTime);
+    }
+
+    private static List<String> listOf(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+}